@@ -0,0 +1,195 @@
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+import java.util.concurrent.TimeUnit;
+import raigbench.Workload;
+
+// Operations measured by the JMH benchmarks in raigbench
+// Sensor data comes from SimulatedSampleSource and FrameEncoder, and the
+// IMU is built with made-up constants for any number of sensors.
+public class Workloads
+{
+    // Number of distinct frames cycled through by the IMU workloads
+    static final int NUM_FRAMES = 64;
+    // Frame period (ms)
+    static final long PERIOD = 22;
+
+    // IMU constants for num_sensors MPU6050-like sensors, with prefix "SIM"
+    static Properties conf(int num_sensors)
+    {
+        Properties conf = new Properties();
+        conf.setProperty("SIM_NUM_SENSORS", "" + num_sensors);
+        for (int i = 0; i < num_sensors; i++) {
+            for (int j = 0; j < 3; j++) {
+                String key = "SIM_" + i + "_" + j + "_";
+                conf.setProperty(key + "KR", "0.00013089969");
+                conf.setProperty(key + "KA", "0.0006");
+                conf.setProperty(key + "OA", "0.0");
+                conf.setProperty(key + "TO", "0.0");
+                conf.setProperty(key + "TS", "0.001");
+            }
+        }
+        return conf;
+    }
+
+    // Simulated frames for num_sensors sensors
+    static SampleBatch[] frames(int num_sensors) throws Exception
+    {
+        SimulatedSampleSource sim = new SimulatedSampleSource(num_sensors, PERIOD, 0.01, 0);
+        sim.setSpeed(0);
+        SampleBatch frames[] = new SampleBatch[NUM_FRAMES];
+        for (int f = 0; f < NUM_FRAMES; f++) {
+            SampleBatch b = sim.poll(1, TimeUnit.SECONDS);
+            frames[f] = new SampleBatch(num_sensors);
+            frames[f].copyFrom(b);
+            sim.release(b);
+        }
+        return frames;
+    }
+
+    // Base for workloads that run an IMU over simulated frames
+    static abstract class IMUWorkload extends Workload
+    {
+        IMU imu;
+        SampleBatch frames[];
+        int next = 0;
+        long time = 0;
+
+        public void setup(int num_sensors) throws Exception
+        {
+            // Calibrate on a second of simulated data
+            SimulatedSampleSource sim = new SimulatedSampleSource(num_sensors, PERIOD, 0.01, 1);
+            sim.setSpeed(0);
+            imu = new IMU(conf(num_sensors), "SIM", sim);
+            imu.calibrate(1000);
+            frames = frames(num_sensors);
+        }
+
+        // Next frame, with a timestamp one period after the last
+        SampleBatch nextFrame()
+        {
+            SampleBatch frame = frames[next];
+            next = (next + 1) % NUM_FRAMES;
+            time += PERIOD;
+            frame.timestamp = time;
+            return frame;
+        }
+    }
+
+    // Decode FRAMES frames of a canned serial stream
+    public static class Decode extends Workload
+    {
+        // Most MPU6050 records that fit in a frame with its timestamp, larger
+        // frames are rejected by the decoder
+        static final int MAX_SENSORS = (FrameDecoder.MAX_FRAME_BYTES - (1 + FrameDecoder.TIMESTAMP_LEN)) /
+                                       (1 + FrameDecoder.MPU6050_LEN);
+
+        byte stream[];
+        BatchQueue mpu_data;
+        BatchQueue lsm_data;
+        FrameDecoder decoder;
+
+        public void setup(int num_sensors)
+        {
+            if (num_sensors > MAX_SENSORS) {
+                throw new IllegalArgumentException("At most " + MAX_SENSORS + " sensors fit in a frame");
+            }
+            stream = FrameEncoder.cannedStream(FRAMES, 0, num_sensors, 0);
+            int batch_cap = FrameDecoder.MAX_FRAME_SAMPLES;
+            lsm_data = new BatchQueue(2*FRAMES, batch_cap, SampleRing.OverflowPolicy.DROP_OLDEST);
+            mpu_data = new BatchQueue(2*FRAMES, batch_cap, SampleRing.OverflowPolicy.DROP_OLDEST);
+            decoder = new FrameDecoder(lsm_data, mpu_data);
+        }
+
+        public double run()
+        {
+            // Every run replays the same timestamps, which would otherwise be
+            // rejected as the board clock going back
+            decoder.reset();
+            decoder.decode(stream, 0, stream.length);
+            // Hand the batches back so decoding stays allocation free
+            double total = 0;
+            SampleBatch b;
+            while ((b = mpu_data.poll()) != null) {
+                total += b.size;
+                mpu_data.release(b);
+            }
+            return total;
+        }
+    }
+
+    // add_samp for every sample in a frame
+    public static class AddSamp extends IMUWorkload
+    {
+        public double run()
+        {
+            SampleBatch frame = nextFrame();
+            for (int s = 0; s < frame.size; s++) {
+                imu.imu_data[frame.id[s]].add_samp(frame, s, PERIOD/1000.0);
+            }
+            return imu.imu_data[0].getHeading()[2];
+        }
+    }
+
+    // add_cal_samp for every sample in a frame
+    public static class AddCalSamp extends IMUWorkload
+    {
+        public double run()
+        {
+            SampleBatch frame = nextFrame();
+            for (int s = 0; s < frame.size; s++) {
+                imu.imu_data[frame.id[s]].add_cal_samp(frame, s, PERIOD/1000.0);
+            }
+            return imu.imu_data[0].getOffset()[2];
+        }
+    }
+
+    // add_psd_samp for every sample in a frame
+    public static class AddPsdSamp extends IMUWorkload
+    {
+        public double run()
+        {
+            SampleBatch frame = nextFrame();
+            for (int s = 0; s < frame.size; s++) {
+                imu.imu_data[frame.id[s]].add_psd_samp(frame, s, PERIOD/1000.0);
+            }
+            return imu.imu_data[0].getNoise()[2];
+        }
+    }
+
+    // Full per-frame processing of IMU.run
+    public static class ProcessFrame extends IMUWorkload
+    {
+        public double run()
+        {
+            imu.processFrame(nextFrame());
+            return imu.imu_data[0].getHeading()[2];
+        }
+    }
+
+    // getBestHeadings after some frames have been processed
+    public static class BestHeadings extends IMUWorkload
+    {
+        public void setup(int num_sensors) throws Exception
+        {
+            super.setup(num_sensors);
+            for (int f = 0; f < NUM_FRAMES; f++) {
+                imu.processFrame(nextFrame());
+            }
+        }
+
+        public double run()
+        {
+            return imu.getBestHeadings()[2];
+        }
+    }
+
+    // getAverageRates after some frames have been processed
+    public static class AverageRates extends BestHeadings
+    {
+        public double run()
+        {
+            return imu.getAverageRates()[2];
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package raigbench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Decoding canned MPU6050 serial streams, as RAIGDriver.demarshall does
+// Time is per frame. 15 sensors is the most a frame can hold.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DecodeBench
+{
+    @Param({"4", "8", "15"})
+    public int sensors;
+
+    private Workload decode;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        decode = Workload.create("Workloads$Decode", sensors);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Workload.FRAMES)
+    public double decode()
+    {
+        return decode.run();
+    }
+}
@@ -0,0 +1,29 @@
+package raigbench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Per-frame sensor update, fusion and weight update (IMU.processFrame, the body of IMU.run)
+// Time is per frame
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FusionBench
+{
+    @Param({"4", "8", "32", "128"})
+    public int sensors;
+
+    private Workload process_frame;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        process_frame = Workload.create("Workloads$ProcessFrame", sensors);
+    }
+
+    @Benchmark
+    public double processFrame()
+    {
+        return process_frame.run();
+    }
+}
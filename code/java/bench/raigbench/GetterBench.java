@@ -0,0 +1,36 @@
+package raigbench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Fused data getters, as polled by the GUI and utilities
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GetterBench
+{
+    @Param({"4", "8", "32", "128"})
+    public int sensors;
+
+    private Workload best_headings;
+    private Workload average_rates;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        best_headings = Workload.create("Workloads$BestHeadings", sensors);
+        average_rates = Workload.create("Workloads$AverageRates", sensors);
+    }
+
+    @Benchmark
+    public double getBestHeadings()
+    {
+        return best_headings.run();
+    }
+
+    @Benchmark
+    public double getAverageRates()
+    {
+        return average_rates.run();
+    }
+}
@@ -0,0 +1,45 @@
+package raigbench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// IMUData.add_samp, add_cal_samp and add_psd_samp over every sample of a frame
+// Time is per frame
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SensorUpdateBench
+{
+    @Param({"4", "8", "32", "128"})
+    public int sensors;
+
+    private Workload add_samp;
+    private Workload add_cal_samp;
+    private Workload add_psd_samp;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        add_samp = Workload.create("Workloads$AddSamp", sensors);
+        add_cal_samp = Workload.create("Workloads$AddCalSamp", sensors);
+        add_psd_samp = Workload.create("Workloads$AddPsdSamp", sensors);
+    }
+
+    @Benchmark
+    public double add_samp()
+    {
+        return add_samp.run();
+    }
+
+    @Benchmark
+    public double add_cal_samp()
+    {
+        return add_cal_samp.run();
+    }
+
+    @Benchmark
+    public double add_psd_samp()
+    {
+        return add_psd_samp.run();
+    }
+}
@@ -0,0 +1,24 @@
+package raigbench;
+
+// An operation measured by the benchmarks
+// JMH will not generate benchmarks in the default package, and classes in a
+// named package cannot see the project's default package classes, so each
+// operation is implemented in Workloads (default package) and loaded by name.
+public abstract class Workload
+{
+    // Frames decoded per run of the decode workload
+    public static final int FRAMES = 64;
+
+    // Build the data for num_sensors sensors
+    public abstract void setup(int num_sensors) throws Exception;
+
+    // Run the operation once, returns a result for JMH to consume
+    public abstract double run();
+
+    public static Workload create(String name, int num_sensors) throws Exception
+    {
+        Workload w = (Workload)Class.forName(name).getDeclaredConstructor().newInstance();
+        w.setup(num_sensors);
+        return w;
+    }
+}
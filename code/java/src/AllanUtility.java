@@ -0,0 +1,220 @@
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Allan deviation of every sensor and of the sensor average in RawLog files
+// The log is read and converted to rad/sec once, in blocks of frames that
+// are handed to one worker thread per core. Each worker runs the streaming
+// AllanVariance of its share of the channels, so a 24 hour recording is
+// analysed in constant memory. Rates use the KR constants in imu.conf; a
+// sensor missing from a frame keeps its previous rate.
+// Usage: AllanUtility [-t threads] [-c] <log> [log ...]
+//   -t  number of worker threads (default: one per core)
+//   -c  also print the deviation curve of every channel
+public class AllanUtility
+{
+    static final int NUM_AXES = IMU.NUM_AXES;
+    static final String AXES[] = {"X", "Y", "Z"};
+    // Frames per block and blocks in circulation
+    static final int BLOCK_FRAMES = 16384;
+    static final int NUM_BLOCKS = 4;
+
+    // Converted rates of a run of frames, shared read-only by the workers
+    static class Block
+    {
+        final double rates[][];
+        final double dt[] = new double[BLOCK_FRAMES];
+        int size = 0;
+        // Workers still using the block
+        final AtomicInteger pending = new AtomicInteger();
+
+        Block(int channels)
+        {
+            rates = new double[channels][BLOCK_FRAMES];
+        }
+    }
+
+    // Marks the end of the log
+    static final Block END = new Block(0);
+
+    public static void main(String args[]) throws Exception
+    {
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean curves = false;
+        List<String> files = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-t") && i + 1 < args.length) {
+                threads = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-c")) {
+                curves = true;
+            } else {
+                files.add(args[i]);
+            }
+        }
+        if (files.isEmpty()) {
+            System.out.println("Usage: AllanUtility [-t threads] [-c] <log> [log ...]");
+            return;
+        }
+
+        Properties conf = IMU.loadConf();
+        for (String file : files) {
+            long start = System.currentTimeMillis();
+            RawLogReader reader = new RawLogReader(file);
+            int num_sensors = reader.getNumSensors();
+            AllanVariance allan[] = analyze(reader, conf, threads);
+            reader.close();
+            long elapsed = System.currentTimeMillis() - start;
+
+            System.out.println(file + ": " + reader.getSensorType() + ", " + num_sensors + " sensors, " +
+                               allan[0].getSamples() + " frames, " +
+                               String.format("%.1f", allan[0].getSamples()*allan[0].getSamplePeriod()/3600.0) +
+                               " hours, analysed in " + elapsed + " ms");
+            System.out.println("channel   ARW (deg/sqrt(h))   BI (deg/h)   RRW (deg/h/sqrt(h))");
+            for (int c = 0; c < allan.length; c++) {
+                AllanVariance a = allan[c];
+                System.out.format("%-8s  %17.5f  %11.5f  %20.5f%n",
+                                  channelName(c, num_sensors),
+                                  IMU.toDegrees(a.getARW())*60.0,
+                                  IMU.toDegrees(a.getBiasInstability())*3600.0,
+                                  IMU.toDegrees(a.getRRW())*3600.0*60.0);
+            }
+            if (curves) {
+                for (int c = 0; c < allan.length; c++) {
+                    System.out.println(channelName(c, num_sensors) + " tau (s), deviation (deg/h):");
+                    for (int k = 0; k < allan[c].getNumLevels(); k++) {
+                        System.out.format("  %12.3f  %14.6f%n", allan[c].getTau(k),
+                                          IMU.toDegrees(allan[c].getDeviation(k))*3600.0);
+                    }
+                }
+            }
+            System.out.println();
+        }
+    }
+
+    // Sensor axes first, then the average of the sensors
+    static String channelName(int c, int num_sensors)
+    {
+        int sensor = c/NUM_AXES;
+        return ((sensor < num_sensors) ? "S" + sensor : "AVG") + " " + AXES[c%NUM_AXES];
+    }
+
+    // Run the Allan variance of every channel of the log
+    // Channel sensor*3 + axis is a sensor, the last three are the average
+    static AllanVariance[] analyze(RawLogReader reader, Properties conf, int threads)
+        throws IOException, InterruptedException
+    {
+        final int num_sensors = reader.getNumSensors();
+        final int channels = (num_sensors + 1)*NUM_AXES;
+        String prefix = reader.getSensorType().name();
+        double kr[][] = new double[num_sensors][NUM_AXES];
+        for (int i = 0; i < num_sensors; i++) {
+            for (int n = 0; n < NUM_AXES; n++) {
+                kr[i][n] = Double.parseDouble(conf.getProperty(prefix + "_" + i + "_" + n + "_KR", "1.0"));
+            }
+        }
+
+        final AllanVariance allan[] = new AllanVariance[channels];
+        for (int c = 0; c < channels; c++) {
+            allan[c] = new AllanVariance();
+        }
+
+        final BlockingQueue<Block> free = new ArrayBlockingQueue<Block>(NUM_BLOCKS);
+        for (int i = 0; i < NUM_BLOCKS; i++) {
+            free.add(new Block(channels));
+        }
+
+        // Worker w takes channels w, w + workers, ...
+        final int workers = Math.min(threads, channels);
+        List<BlockingQueue<Block>> queues = new ArrayList<BlockingQueue<Block>>();
+        Thread pool[] = new Thread[workers];
+        for (int w = 0; w < workers; w++) {
+            final int first = w;
+            final BlockingQueue<Block> queue = new ArrayBlockingQueue<Block>(NUM_BLOCKS + 1);
+            queues.add(queue);
+            pool[w] = new Thread() {
+                public void run()
+                {
+                    try {
+                        Block b;
+                        while ((b = queue.take()) != END) {
+                            for (int c = first; c < channels; c += workers) {
+                                AllanVariance a = allan[c];
+                                double r[] = b.rates[c];
+                                for (int j = 0; j < b.size; j++) {
+                                    a.add(r[j], b.dt[j]);
+                                }
+                            }
+                            if (b.pending.decrementAndGet() == 0) {
+                                free.add(b);
+                            }
+                        }
+                    }
+                    catch (InterruptedException e) { return; }
+                }
+            };
+            pool[w].start();
+        }
+
+        // Decode frames into blocks
+        SampleBatch batch = new SampleBatch(FrameDecoder.MAX_FRAME_SAMPLES);
+        double last[] = new double[channels];
+        long prev_time = 0;
+        boolean first_frame = true;
+        Block b = free.take();
+        b.size = 0;
+        while (reader.read(batch)) {
+            for (int s = 0; s < batch.size; s++) {
+                int id = batch.id[s];
+                if (id < num_sensors) {
+                    for (int n = 0; n < NUM_AXES; n++) {
+                        last[id*NUM_AXES + n] = batch.rate[3*s+n]*kr[id][n];
+                    }
+                }
+            }
+            for (int n = 0; n < NUM_AXES; n++) {
+                double avg = 0.0;
+                for (int i = 0; i < num_sensors; i++) {
+                    avg += last[i*NUM_AXES + n];
+                }
+                last[num_sensors*NUM_AXES + n] = avg/num_sensors;
+            }
+
+            // Like the IMU, the first frame only sets the start time
+            if (!first_frame) {
+                for (int c = 0; c < channels; c++) {
+                    b.rates[c][b.size] = last[c];
+                }
+                b.dt[b.size] = (batch.timestamp - prev_time)/1000.0;
+                b.size++;
+                if (b.size == BLOCK_FRAMES) {
+                    publish(b, queues);
+                    b = free.take();
+                    b.size = 0;
+                }
+            }
+            first_frame = false;
+            prev_time = batch.timestamp;
+        }
+        if (b.size > 0) {
+            publish(b, queues);
+        }
+        for (BlockingQueue<Block> q : queues) {
+            q.put(END);
+        }
+        for (Thread t : pool) {
+            t.join();
+        }
+        return allan;
+    }
+
+    static void publish(Block b, List<BlockingQueue<Block>> queues) throws InterruptedException
+    {
+        b.pending.set(queues.size());
+        for (BlockingQueue<Block> q : queues) {
+            q.put(b);
+        }
+    }
+}
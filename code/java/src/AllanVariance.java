@@ -0,0 +1,239 @@
+import java.util.*;
+import java.lang.*;
+
+// Streaming Allan variance of one rate signal at octave-spaced cluster sizes
+// Samples are added one at a time and only a few phase values are kept for
+// each cluster size m = 1, 2, 4, ... 2^(levels-1), so memory does not grow
+// with the length of the recording. For each m the estimator sums
+//   (theta[n] - 2*theta[n-m] + theta[n-2m])^2
+// over the phase theta (the running sum of the samples), which is
+// 2*m^2 times the Allan variance. Small clusters use every start point
+// (fully overlapping). Larger ones use OVERLAP evenly spaced start points per
+// cluster, which keeps nearly all of the confidence of full overlap.
+//
+// The noise terms follow IEEE Std 952: angle random walk from the -1/2
+// slope, bias instability from the flat bottom and rate random walk from
+// the +1/2 slope of the deviation curve.
+//
+// One thread adds samples. Results read from another thread may be a
+// sample out of date, which does not matter for a report.
+public class AllanVariance
+{
+    // Cluster sizes, enough for days of data at a few kHz
+    static final int DEFAULT_LEVELS = 32;
+    // Start points used per cluster for the larger cluster sizes (power of 2)
+    static final int OVERLAP = 8;
+    // Terms needed before a cluster size is reported
+    static final int MIN_TERMS = 16;
+    // Ratio of the bias instability to the minimum deviation (sqrt(2 ln 2/pi))
+    static final double BI_FACTOR = 0.664;
+
+    private final int levels;
+    // Phase values kept for each level, and where the next one goes
+    private final double ring[][];
+    private final int ring_pos[];
+    private final int ring_fill[];
+    // Samples between kept phase values, and kept values per cluster
+    private final long stride[];
+    private final int gap[];
+    // Sum of squared second differences and number of terms
+    private final double sum[];
+    private final long terms[];
+
+    // Running sum of (sample - first sample)
+    private double phase = 0.0;
+    private double first = 0.0;
+    private long count = 0;
+    private double total_time = 0.0;
+
+    public AllanVariance()
+    {
+        this(DEFAULT_LEVELS);
+    }
+
+    public AllanVariance(int levels)
+    {
+        this.levels = levels;
+        ring = new double[levels][2*OVERLAP + 1];
+        ring_pos = new int[levels];
+        ring_fill = new int[levels];
+        stride = new long[levels];
+        gap = new int[levels];
+        sum = new double[levels];
+        terms = new long[levels];
+        for (int k = 0; k < levels; k++) {
+            long m = 1L << k;
+            stride[k] = Math.max(1, m/OVERLAP);
+            gap[k] = (int)(m/stride[k]);
+        }
+    }
+
+    // Add a sample that covers dt seconds
+    // Samples are treated as evenly spaced, dt only sets the time scale
+    public void add(double y, double dt)
+    {
+        if (count == 0) {
+            first = y;
+            for (int k = 0; k < levels; k++) {
+                push(k, 0.0);
+            }
+        }
+        phase += y - first;
+        count++;
+        total_time += dt;
+
+        // Strides are powers of two in increasing order, so once one does
+        // not divide the sample count no larger one does
+        for (int k = 0; k < levels; k++) {
+            if ((count & (stride[k] - 1)) != 0) {
+                break;
+            }
+            push(k, phase);
+        }
+    }
+
+    private void push(int k, double theta)
+    {
+        double r[] = ring[k];
+        int len = r.length;
+        int p = ring_pos[k];
+        r[p] = theta;
+        if (ring_fill[k] < len) {
+            ring_fill[k]++;
+        }
+        int g = gap[k];
+        if (ring_fill[k] > 2*g) {
+            int p1 = p - g;
+            int p2 = p - 2*g;
+            if (p1 < 0) {
+                p1 += len;
+            }
+            if (p2 < 0) {
+                p2 += len;
+            }
+            double d = theta - 2.0*r[p1] + r[p2];
+            sum[k] += d*d;
+            terms[k]++;
+        }
+        ring_pos[k] = (p + 1 == len) ? 0 : p + 1;
+    }
+
+    public void clear()
+    {
+        for (int k = 0; k < levels; k++) {
+            ring_pos[k] = 0;
+            ring_fill[k] = 0;
+            sum[k] = 0.0;
+            terms[k] = 0;
+        }
+        phase = 0.0;
+        first = 0.0;
+        count = 0;
+        total_time = 0.0;
+    }
+
+    public long getSamples()
+    {
+        return count;
+    }
+
+    // Average time between samples (sec)
+    public double getSamplePeriod()
+    {
+        return (count > 0) ? total_time/count : 0.0;
+    }
+
+    // Number of cluster sizes with enough data to report
+    public int getNumLevels()
+    {
+        int k = 0;
+        while (k < levels && terms[k] >= MIN_TERMS) {
+            k++;
+        }
+        return k;
+    }
+
+    // Cluster time of a level (sec)
+    public double getTau(int k)
+    {
+        return (1L << k)*getSamplePeriod();
+    }
+
+    public double getVariance(int k)
+    {
+        if (terms[k] == 0) {
+            return 0.0;
+        }
+        double m = (double)(1L << k);
+        return sum[k]/(2.0*m*m*terms[k]);
+    }
+
+    // Allan deviation of a level (same units as the samples)
+    public double getDeviation(int k)
+    {
+        return Math.sqrt(getVariance(k));
+    }
+
+    public long getTerms(int k)
+    {
+        return terms[k];
+    }
+
+    // Angle random walk (rad/sqrt(sec) for samples in rad/sec)
+    // The deviation at tau = 1 sec of the -1/2 slope, NaN if there is none
+    public double getARW()
+    {
+        int k = closestSlope(-0.5, false);
+        return (k < 0) ? Double.NaN : getDeviation(k)*Math.sqrt(getTau(k));
+    }
+
+    // Bias instability (rad/sec), from the lowest deviation
+    public double getBiasInstability()
+    {
+        int n = getNumLevels();
+        if (n == 0) {
+            return Double.NaN;
+        }
+        double min = Double.MAX_VALUE;
+        for (int k = 0; k < n; k++) {
+            min = Math.min(min, getDeviation(k));
+        }
+        return min/BI_FACTOR;
+    }
+
+    // Rate random walk (rad/sec/sqrt(sec))
+    // The deviation at tau = 3 sec of the +1/2 slope, NaN if the recording
+    // is too short to show one
+    public double getRRW()
+    {
+        int k = closestSlope(0.5, true);
+        return (k < 0) ? Double.NaN : getDeviation(k)*Math.sqrt(3.0/getTau(k));
+    }
+
+    // Level where the log-log slope to the next level is closest to target,
+    // looking only at rising or only at falling parts, -1 if there are none
+    private int closestSlope(double target, boolean rising)
+    {
+        int n = getNumLevels();
+        int best = -1;
+        double best_err = Double.MAX_VALUE;
+        for (int k = 0; k + 1 < n; k++) {
+            double a = getDeviation(k);
+            double b = getDeviation(k + 1);
+            if (a <= 0.0 || b <= 0.0) {
+                continue;
+            }
+            // Cluster sizes double, so this is log(b/a)/log(2)
+            double slope = Math.log(b/a)/Math.log(2.0);
+            if ((slope > 0.0) != rising) {
+                continue;
+            }
+            double err = Math.abs(slope - target);
+            if (err < best_err) {
+                best_err = err;
+                best = rising ? k + 1 : k;
+            }
+        }
+        return best;
+    }
+}
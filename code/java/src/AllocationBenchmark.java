@@ -0,0 +1,153 @@
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+import java.lang.management.*;
+import java.util.concurrent.TimeUnit;
+
+// Checks that the steady-state sample pipeline does not allocate
+// A producer thread decodes a canned byte stream into the driver queues and a
+// consumer thread drains them the way the recorders do. After a warm-up,
+// the bytes allocated by both threads and the number of collections are
+// reported. Then the IMU processes simulated MPU6050 frames (with the
+// constants in imu.conf) and the bytes it allocates per frame are reported.
+// Run with -verbose:gc (or -Xlog:gc) to see the GC log as well.
+// Usage: AllocationBenchmark [seconds]
+public class AllocationBenchmark
+{
+    static volatile boolean running = true;
+    static volatile boolean producing = true;
+
+    public static void main(String args[]) throws Exception
+    {
+        long seconds = (args.length > 0) ? Long.parseLong(args[0]) : 10;
+
+        final byte stream[] = FrameEncoder.cannedStream(1000, 3, 4, 0);
+        final BatchQueue lsms = new BatchQueue(RAIGDriver.QUEUE_CAPACITY, FrameDecoder.MAX_FRAME_SAMPLES,
+                                               SampleRing.OverflowPolicy.BLOCK);
+        final BatchQueue mpus = new BatchQueue(RAIGDriver.QUEUE_CAPACITY, FrameDecoder.MAX_FRAME_SAMPLES,
+                                               SampleRing.OverflowPolicy.BLOCK);
+        final FrameDecoder decoder = new FrameDecoder(lsms, mpus);
+
+        Thread producer = new Thread() {
+            public void run()
+            {
+                while (running) {
+                    for (int off = 0; off < stream.length && running; off += 64) {
+                        decoder.decode(stream, off, Math.min(64, stream.length - off));
+                    }
+                }
+                producing = false;
+            }
+        };
+        Thread consumer = new Thread() {
+            public void run()
+            {
+                long sum = 0;
+                // Keep draining until the producer stops, it may be blocked on a full queue
+                while (producing) {
+                    SampleBatch b;
+                    while ((b = lsms.poll()) != null) {
+                        sum += consume(b);
+                        lsms.release(b);
+                    }
+                    while ((b = mpus.poll()) != null) {
+                        sum += consume(b);
+                        mpus.release(b);
+                    }
+                }
+                if (sum == 42) {
+                    System.out.println();
+                }
+            }
+        };
+        producer.start();
+        consumer.start();
+
+        // Warm up so batches are in circulation and code is compiled
+        Thread.sleep(3000);
+
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long ids[] = {producer.getId(), consumer.getId()};
+        long alloc_start[] = threads.getThreadAllocatedBytes(ids);
+        long gc_start = gcCount();
+        long frames_start = decoder.getFrameCount();
+
+        Thread.sleep(seconds*1000);
+
+        long alloc_end[] = threads.getThreadAllocatedBytes(ids);
+        long gc_end = gcCount();
+        long frames = decoder.getFrameCount() - frames_start;
+        running = false;
+        producer.join();
+        consumer.join();
+
+        System.out.println("Frames decoded:        " + frames);
+        System.out.println("Producer bytes/frame:  " + (double)(alloc_end[0] - alloc_start[0])/frames);
+        System.out.println("Consumer bytes/frame:  " + (double)(alloc_end[1] - alloc_start[1])/frames);
+        System.out.println("Collections:           " + (gc_end - gc_start));
+
+        fusion(seconds);
+    }
+
+    // Measure allocation of IMU.processFrame in this thread
+    static void fusion(long seconds) throws Exception
+    {
+        SimulatedSampleSource sim = new SimulatedSampleSource(4, 22, 0.01, 0);
+        sim.setSpeed(0);
+        IMU imu = new IMU(IMU.IMUType.MPU6050, sim);
+        imu.calibrate(1000);
+
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+
+        // Warm up, then measure
+        process(imu, sim, 3000);
+        long alloc_start = threads.getThreadAllocatedBytes(id);
+        long gc_start = gcCount();
+        long frames = process(imu, sim, seconds*1000);
+        long alloc_end = threads.getThreadAllocatedBytes(id);
+        long gc_end = gcCount();
+
+        System.out.println("Frames fused:          " + frames);
+        System.out.println("Fusion bytes/frame:    " + (double)(alloc_end - alloc_start)/frames);
+        System.out.println("Collections:           " + (gc_end - gc_start));
+    }
+
+    // Process frames for millis, returns the number of frames
+    static long process(IMU imu, SampleSource source, long millis) throws Exception
+    {
+        long frames = 0;
+        long end = System.currentTimeMillis() + millis;
+        while (System.currentTimeMillis() < end) {
+            SampleBatch b = source.poll(1, TimeUnit.SECONDS);
+            imu.processFrame(b);
+            source.release(b);
+            frames++;
+        }
+        return frames;
+    }
+
+    // Touch every column, like a recorder would
+    static long consume(SampleBatch b)
+    {
+        long sum = b.timestamp;
+        for (int i = 0; i < b.size; i++) {
+            sum += b.id[i] + b.temp[i];
+            for (int n = 0; n < 3; n++) {
+                sum += b.rate[3*i+n] + b.accel[3*i+n];
+            }
+        }
+        return sum;
+    }
+
+    static long gcCount()
+    {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+}
@@ -0,0 +1,200 @@
+import java.util.*;
+import java.lang.*;
+
+// 3D attitude as a unit quaternion, propagated from body rates
+// The quaternion q = (w, x, y, z) rotates body coordinates into the world
+// frame, whose Z axis points up. Each step rotates q by the body rate over
+// dt exactly (axis-angle), so the result holds for any combination of axes,
+// unlike integrating each axis on its own.
+//
+// update() also takes an accelerometer reading and applies a Mahony
+// complementary correction: the cross product of the measured and estimated
+// up directions is fed back into the rate with gains kp (proportional) and
+// ki (integral, which learns the remaining gyro bias). This pulls roll and
+// pitch towards gravity, yaw is left to the gyros. The correction is only
+// applied when the acceleration is within accel_gate of 1 g, so the rig
+// being pushed around does not tilt the estimate.
+//
+// Nothing is allocated after construction.
+public class Attitude
+{
+    // Standard gravity (m/s^2)
+    static final double GRAVITY = 9.80665;
+
+    // Proportional and integral feedback gains (1/sec and 1/sec^2)
+    private double kp = 1.0;
+    private double ki = 0.01;
+    // Largest relative difference of |accel| from 1 g that is still trusted
+    private double accel_gate = 0.1;
+
+    // Quaternion
+    private double qw = 1.0;
+    private double qx = 0.0;
+    private double qy = 0.0;
+    private double qz = 0.0;
+    // Integral of the tilt error (rad/sec)
+    private double ix = 0.0;
+    private double iy = 0.0;
+    private double iz = 0.0;
+
+    // Propagate with body rates (rad/sec) only
+    public void integrate(double wx, double wy, double wz, double dt)
+    {
+        if (dt <= 0.0) {
+            return;
+        }
+        rotate(wx*dt, wy*dt, wz*dt);
+    }
+
+    // Propagate with body rates (rad/sec), correcting tilt with the
+    // acceleration (m/s^2)
+    public void update(double wx, double wy, double wz,
+                       double ax, double ay, double az, double dt)
+    {
+        if (dt <= 0.0) {
+            return;
+        }
+
+        double norm = Math.sqrt(ax*ax + ay*ay + az*az);
+        if (norm > 0.0 && Math.abs(norm - GRAVITY) <= accel_gate*GRAVITY) {
+            ax /= norm;
+            ay /= norm;
+            az /= norm;
+
+            // Up direction in body coordinates, the third row of the rotation matrix
+            double vx = 2.0*(qx*qz - qw*qy);
+            double vy = 2.0*(qw*qx + qy*qz);
+            double vz = qw*qw - qx*qx - qy*qy + qz*qz;
+
+            // Rotation that takes the estimate towards the measurement
+            double ex = ay*vz - az*vy;
+            double ey = az*vx - ax*vz;
+            double ez = ax*vy - ay*vx;
+
+            if (ki > 0.0) {
+                ix += ki*ex*dt;
+                iy += ki*ey*dt;
+                iz += ki*ez*dt;
+            }
+            wx += kp*ex + ix;
+            wy += kp*ey + iy;
+            wz += kp*ez + iz;
+        } else {
+            // Keep applying the learned bias
+            wx += ix;
+            wy += iy;
+            wz += iz;
+        }
+
+        rotate(wx*dt, wy*dt, wz*dt);
+    }
+
+    // q = q * exp(theta/2), theta a body rotation vector in radians
+    private void rotate(double tx, double ty, double tz)
+    {
+        double angle = Math.sqrt(tx*tx + ty*ty + tz*tz);
+        if (angle == 0.0) {
+            return;
+        }
+        double c = Math.cos(0.5*angle);
+        double s = Math.sin(0.5*angle)/angle;
+        double dx = tx*s;
+        double dy = ty*s;
+        double dz = tz*s;
+
+        double w = qw*c - qx*dx - qy*dy - qz*dz;
+        double x = qw*dx + qx*c + qy*dz - qz*dy;
+        double y = qw*dy - qx*dz + qy*c + qz*dx;
+        double z = qw*dz + qx*dy - qy*dx + qz*c;
+
+        // Renormalize so rounding errors do not build up
+        double n = 1.0/Math.sqrt(w*w + x*x + y*y + z*z);
+        qw = w*n;
+        qx = x*n;
+        qy = y*n;
+        qz = z*n;
+    }
+
+    // Copy the quaternion (w, x, y, z) into q
+    public void getQuaternion(double q[])
+    {
+        q[0] = qw;
+        q[1] = qx;
+        q[2] = qy;
+        q[3] = qz;
+    }
+
+    // Set the quaternion (w, x, y, z), it is normalized
+    public void setQuaternion(double q[])
+    {
+        double n = Math.sqrt(q[0]*q[0] + q[1]*q[1] + q[2]*q[2] + q[3]*q[3]);
+        if (n == 0.0) {
+            reset();
+            return;
+        }
+        qw = q[0]/n;
+        qx = q[1]/n;
+        qy = q[2]/n;
+        qz = q[3]/n;
+    }
+
+    // Level, facing along X, and forget the learned bias
+    public void reset()
+    {
+        qw = 1.0;
+        qx = 0.0;
+        qy = 0.0;
+        qz = 0.0;
+        ix = 0.0;
+        iy = 0.0;
+        iz = 0.0;
+    }
+
+    // Roll, pitch and yaw in radians (rotations about X, Y and Z, applied Z first)
+    public void getEuler(double e[])
+    {
+        toEuler(qw, qx, qy, qz, e);
+    }
+
+    // Convert a quaternion (w, x, y, z) to roll, pitch and yaw in radians
+    static public void toEuler(double q[], double e[])
+    {
+        toEuler(q[0], q[1], q[2], q[3], e);
+    }
+
+    static void toEuler(double w, double x, double y, double z, double e[])
+    {
+        e[0] = Math.atan2(2.0*(w*x + y*z), 1.0 - 2.0*(x*x + y*y));
+        double sp = 2.0*(w*y - z*x);
+        if (sp > 1.0) {
+            sp = 1.0;
+        } else if (sp < -1.0) {
+            sp = -1.0;
+        }
+        e[1] = Math.asin(sp);
+        e[2] = Math.atan2(2.0*(w*z + x*y), 1.0 - 2.0*(y*y + z*z));
+    }
+
+    public double getKp()
+    {
+        return kp;
+    }
+
+    public double getKi()
+    {
+        return ki;
+    }
+
+    // Set the feedback gains, 0 for both gives plain gyro integration
+    public void setGains(double kp, double ki)
+    {
+        this.kp = kp;
+        this.ki = ki;
+    }
+
+    // Largest relative difference of |accel| from 1 g for a correction
+    public void setAccelGate(double gate)
+    {
+        accel_gate = gate;
+    }
+}
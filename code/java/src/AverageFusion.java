@@ -0,0 +1,55 @@
+import java.util.*;
+import java.lang.*;
+
+// Plain average of the active sensors
+public class AverageFusion implements FusionAlgorithm
+{
+    static final int NUM_AXES = IMU.NUM_AXES;
+
+    private IMU.IMUData sensors[];
+    private double head[] = new double[NUM_AXES];
+    private double rate[] = new double[NUM_AXES];
+
+    public String getName()
+    {
+        return "average";
+    }
+
+    public void configure(IMU.IMUData s[])
+    {
+        sensors = s;
+    }
+
+    public void update(SampleBatch frame, int active_sensors, double dt)
+    {
+        for (int n = 0; n < NUM_AXES; n++) {
+            rate[n] = 0.0;
+        }
+        for (int i = 0; i < frame.size; i++) {
+            int id = frame.id[i];
+            if (id >= 0 && id < active_sensors) {
+                double delta[] = sensors[id].getDelta();
+                double r[] = sensors[id].getRate();
+                for (int n = 0; n < NUM_AXES; n++) {
+                    head[n] += delta[n]/active_sensors;
+                    rate[n] += r[n]/active_sensors;
+                }
+            }
+        }
+    }
+
+    public void getHeadings(double out[])
+    {
+        System.arraycopy(head, 0, out, 0, NUM_AXES);
+    }
+
+    public void getRates(double out[])
+    {
+        System.arraycopy(rate, 0, out, 0, NUM_AXES);
+    }
+
+    public void setHeadings(double h[])
+    {
+        System.arraycopy(h, 0, head, 0, NUM_AXES);
+    }
+}
@@ -0,0 +1,130 @@
+import java.util.*;
+import java.lang.*;
+import java.util.concurrent.TimeUnit;
+
+// Queue of SampleBatches from one producer thread to one consumer thread
+// Batches the consumer is done with are released back to the producer,
+// which fills them again, so once enough batches are in circulation the
+// queue stops allocating.
+public class BatchQueue implements SampleSource, BatchSink
+{
+    // Filled batches waiting for the consumer
+    private final SampleRing<SampleBatch> full;
+    // Released batches waiting to be refilled
+    private final SampleRing<SampleBatch> free;
+    // Batch dropped from the full queue, kept for the producer's next acquire
+    private SampleBatch spare = null;
+
+    private final int batch_capacity;
+
+    public BatchQueue(int capacity, int batch_cap, SampleRing.OverflowPolicy policy)
+    {
+        full = new SampleRing<SampleBatch>(capacity, policy);
+        // One extra slot each for the batch being filled and the one being consumed
+        free = new SampleRing<SampleBatch>(capacity + 2, SampleRing.OverflowPolicy.DROP_NEWEST);
+        batch_capacity = batch_cap;
+    }
+
+    //
+    //
+    // Producer side
+    //
+    //
+
+    // Get an empty batch to fill
+    public SampleBatch acquire()
+    {
+        SampleBatch b = spare;
+        if (b != null) {
+            spare = null;
+        } else {
+            b = free.poll();
+            if (b == null) {
+                b = new SampleBatch(batch_capacity);
+            }
+        }
+        b.clear();
+        return b;
+    }
+
+    // Queue a filled batch for the consumer
+    // The producer must not touch the batch afterwards
+    public void publish(SampleBatch b)
+    {
+        SampleBatch lost = full.offer(b);
+        if (lost != null) {
+            spare = lost;
+        }
+    }
+
+    //
+    //
+    // Consumer side
+    //
+    //
+
+    // Take the oldest filled batch, or null if there is none
+    // Hand it back with release() when done with it
+    public SampleBatch poll()
+    {
+        return full.poll();
+    }
+
+    // Take the oldest filled batch, waiting up to timeout for one to arrive
+    // Returns null if nothing arrived in time
+    public SampleBatch poll(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        return full.poll(timeout, unit);
+    }
+
+    // Return a batch taken with poll() so it can be refilled
+    public void release(SampleBatch b)
+    {
+        if (b != null) {
+            free.offer(b);
+        }
+    }
+
+    // Throw away all queued batches
+    public void clear()
+    {
+        SampleBatch b;
+        while ((b = full.poll()) != null) {
+            release(b);
+        }
+    }
+
+    public boolean isEmpty()
+    {
+        return full.isEmpty();
+    }
+
+    // A live queue can always receive more data
+    public boolean isFinished()
+    {
+        return false;
+    }
+
+    // Number of queued batches
+    public int size()
+    {
+        return full.size();
+    }
+
+    // Number of batches lost to overflow
+    public long getDropped()
+    {
+        return full.getDropped();
+    }
+
+    public void setOverflowPolicy(SampleRing.OverflowPolicy p)
+    {
+        full.setOverflowPolicy(p);
+    }
+
+    // Set how the consumer waits for batches
+    public void setWaitStrategy(SampleRing.WaitStrategy w)
+    {
+        full.setWaitStrategy(w);
+    }
+}
@@ -0,0 +1,14 @@
+import java.util.*;
+import java.lang.*;
+
+// Where a producer such as the FrameDecoder puts the batches it fills
+// Implemented by BatchQueue (one consumer) and SampleBus (any number).
+public interface BatchSink
+{
+    // Get an empty batch to fill
+    public SampleBatch acquire();
+
+    // Hand over a filled batch from acquire()
+    // The producer must not touch the batch afterwards
+    public void publish(SampleBatch b);
+}
@@ -0,0 +1,66 @@
+import java.util.*;
+import java.lang.*;
+
+// Heading of whichever single sensor is closest to the average, per axis
+public class BestFusion implements FusionAlgorithm
+{
+    static final int NUM_AXES = IMU.NUM_AXES;
+
+    private IMU.IMUData sensors[];
+    // Average heading the sensors are compared to
+    private double average[] = new double[NUM_AXES];
+    private double head[] = new double[NUM_AXES];
+    private double rate[] = new double[NUM_AXES];
+
+    public String getName()
+    {
+        return "best";
+    }
+
+    public void configure(IMU.IMUData s[])
+    {
+        sensors = s;
+    }
+
+    public void update(SampleBatch frame, int active_sensors, double dt)
+    {
+        for (int i = 0; i < frame.size; i++) {
+            int id = frame.id[i];
+            if (id >= 0 && id < active_sensors) {
+                double delta[] = sensors[id].getDelta();
+                for (int n = 0; n < NUM_AXES; n++) {
+                    average[n] += delta[n]/active_sensors;
+                }
+            }
+        }
+        for (int n = 0; n < NUM_AXES; n++) {
+            int best = 0;
+            double lowestDiff = Math.abs(average[n] - sensors[0].getHeading()[n]);
+            for (int k = 1; k < active_sensors; k++) {
+                double diff = Math.abs(average[n] - sensors[k].getHeading()[n]);
+                if (diff < lowestDiff) {
+                    lowestDiff = diff;
+                    best = k;
+                }
+            }
+            head[n] = sensors[best].getHeading()[n];
+            rate[n] = sensors[best].getRate()[n];
+        }
+    }
+
+    public void getHeadings(double out[])
+    {
+        System.arraycopy(head, 0, out, 0, NUM_AXES);
+    }
+
+    public void getRates(double out[])
+    {
+        System.arraycopy(rate, 0, out, 0, NUM_AXES);
+    }
+
+    // Moves the average the sensors are compared to
+    public void setHeadings(double h[])
+    {
+        System.arraycopy(h, 0, average, 0, NUM_AXES);
+    }
+}
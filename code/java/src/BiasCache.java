@@ -0,0 +1,233 @@
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+import java.nio.file.*;
+import java.util.concurrent.CompletableFuture;
+
+// Gyro offsets measured by earlier calibrations, indexed by temperature
+// An IMU can start from the offsets of the nearest temperatures instead of
+// calibrating (see IMU.warmStart). Sensors are named by their imu.conf
+// prefix (e.g. "MPU6050_0_"), and each sensor keeps its latest entry per
+// TEMP_BIN raw temperature counts, in a TreeMap so the nearest ones are
+// found directly.
+//
+// The file is rewritten as a whole on save(), through a temporary file so
+// a crash leaves either the old or the new cache:
+//   int   magic ("RBIA")
+//   short format version
+//   int   number of entries
+// followed by one entry after another:
+//   UTF   sensor name
+//   long  time measured (ms since the epoch)
+//   float temperature (raw counts, averaged over the measurement)
+//   int   number of samples averaged
+//   double offset X, Y, Z (raw counts, as IMUData.getOffset)
+// All values are big-endian (DataOutputStream).
+public class BiasCache
+{
+    static final int MAGIC = 0x52424941;
+    static final short VERSION = 1;
+    static final String DEFAULT_FILE = "bias.cache";
+    // Width of a temperature bin, about half a degree C for the MPU6050
+    static final double TEMP_BIN = 170.0;
+    // Farthest an entry can be from the temperature asked for (raw counts)
+    static final double MAX_TEMP_DISTANCE = 4*TEMP_BIN;
+    // Entries older than this are stale
+    static final long DEFAULT_MAX_AGE_MILLIS = 7*24*3600*1000L;
+
+    // One measurement of a sensor's offsets
+    public static final class Entry
+    {
+        final long time_millis;
+        final double temp;
+        final int samples;
+        final double offset[];
+
+        Entry(long time_millis, double temp, int samples, double offset[])
+        {
+            this.time_millis = time_millis;
+            this.temp = temp;
+            this.samples = samples;
+            this.offset = offset.clone();
+        }
+
+        public long getTime()
+        {
+            return time_millis;
+        }
+
+        public double getTemp()
+        {
+            return temp;
+        }
+
+        public int getSamples()
+        {
+            return samples;
+        }
+
+        // Offsets in raw counts
+        public double[] getOffset()
+        {
+            return offset.clone();
+        }
+    }
+
+    private final String file;
+    private final Map<String, TreeMap<Long, Entry>> sensors = new HashMap<String, TreeMap<Long, Entry>>();
+    private volatile long max_age_millis = DEFAULT_MAX_AGE_MILLIS;
+
+    // Load the cache kept in file, starting empty if there is none
+    // A damaged file is reported and replaced on the next save()
+    public BiasCache(String file)
+    {
+        this.file = file;
+        if (!new File(file).exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + ": not a bias cache");
+            }
+            short version = in.readShort();
+            if (version != VERSION) {
+                throw new IOException(file + ": unsupported bias cache version " + version);
+            }
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String name = in.readUTF();
+                long time = in.readLong();
+                double temp = in.readFloat();
+                int samples = in.readInt();
+                double offset[] = new double[IMU.NUM_AXES];
+                for (int a = 0; a < IMU.NUM_AXES; a++) {
+                    offset[a] = in.readDouble();
+                }
+                add(name, new Entry(time, temp, samples, offset));
+            }
+        } catch (IOException e) {
+            System.err.println(e.toString());
+            sensors.clear();
+        }
+    }
+
+    // Record a measurement, replacing the one in the same temperature bin
+    public synchronized void put(String name, double temp, int samples, double offset[])
+    {
+        add(name, new Entry(System.currentTimeMillis(), temp, samples, offset));
+    }
+
+    private void add(String name, Entry e)
+    {
+        TreeMap<Long, Entry> entries = sensors.get(name);
+        if (entries == null) {
+            entries = new TreeMap<Long, Entry>();
+            sensors.put(name, entries);
+        }
+        Long bin = Math.round(e.temp/TEMP_BIN);
+        Entry old = entries.get(bin);
+        if (old == null || old.time_millis <= e.time_millis) {
+            entries.put(bin, e);
+        }
+    }
+
+    // Offsets of a sensor at a temperature, or null if there are no fresh
+    // entries within MAX_TEMP_DISTANCE
+    // Between the nearest fresh entries on either side the offsets are
+    // interpolated, and the result is as old and has as few samples as the
+    // worse of the two.
+    public synchronized Entry lookup(String name, double temp)
+    {
+        TreeMap<Long, Entry> entries = sensors.get(name);
+        if (entries == null) {
+            return null;
+        }
+        long oldest = System.currentTimeMillis() - max_age_millis;
+        Long bin = Math.round(temp/TEMP_BIN);
+        Entry below = null;
+        for (Entry e : entries.headMap(bin, true).descendingMap().values()) {
+            if (e.time_millis >= oldest && e.temp <= temp) {
+                below = e;
+                break;
+            }
+        }
+        Entry above = null;
+        for (Entry e : entries.tailMap(bin, true).values()) {
+            if (e.time_millis >= oldest && e.temp >= temp && e != below) {
+                above = e;
+                break;
+            }
+        }
+        if (below != null && temp - below.temp > MAX_TEMP_DISTANCE) {
+            below = null;
+        }
+        if (above != null && above.temp - temp > MAX_TEMP_DISTANCE) {
+            above = null;
+        }
+
+        if (below == null || above == null || above.temp == below.temp) {
+            return (below != null) ? below : above;
+        }
+        double f = (temp - below.temp)/(above.temp - below.temp);
+        double offset[] = new double[IMU.NUM_AXES];
+        for (int a = 0; a < IMU.NUM_AXES; a++) {
+            offset[a] = below.offset[a] + f*(above.offset[a] - below.offset[a]);
+        }
+        return new Entry(Math.min(below.time_millis, above.time_millis), temp,
+                         Math.min(below.samples, above.samples), offset);
+    }
+
+    // Entries older than this are not used by lookup() (but still kept)
+    public void setMaxAge(long millis)
+    {
+        max_age_millis = millis;
+    }
+
+    public synchronized int size()
+    {
+        int n = 0;
+        for (TreeMap<Long, Entry> entries : sensors.values()) {
+            n += entries.size();
+        }
+        return n;
+    }
+
+    // Write the cache to its file
+    public synchronized void save() throws IOException
+    {
+        Path path = Paths.get(file).toAbsolutePath();
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileOutputStream fout = new FileOutputStream(tmp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(size());
+            for (Map.Entry<String, TreeMap<Long, Entry>> s : sensors.entrySet()) {
+                for (Entry e : s.getValue().values()) {
+                    out.writeUTF(s.getKey());
+                    out.writeLong(e.time_millis);
+                    out.writeFloat((float)e.temp);
+                    out.writeInt(e.samples);
+                    for (int a = 0; a < IMU.NUM_AXES; a++) {
+                        out.writeDouble(e.offset[a]);
+                    }
+                }
+            }
+            out.flush();
+            fout.getFD().sync();
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // save() on another thread, errors are printed
+    public CompletableFuture<Void> saveAsync()
+    {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                save();
+            } catch (IOException e) {
+                System.err.println(e.toString());
+            }
+        });
+    }
+}
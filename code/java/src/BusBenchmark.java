@@ -0,0 +1,103 @@
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+import java.util.concurrent.TimeUnit;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+// Measures the throughput of the SampleBus with several consumers
+// One producer publishes frames of FrameDecoder.MAX_FRAME_SAMPLES samples as
+// fast as it can, numbered in their timestamps, with the BLOCK policy so no
+// frame is lost, and every consumer thread checks that it gets every frame
+// in order. Consumers only add up the samples, so this is the cost of the bus
+// itself. The rate needs a core per thread to show how it scales, so the CPU
+// time per frame of the producer and of each consumer is printed as well;
+// it stays the same as consumers are added when the bus scales.
+// Usage: BusBenchmark [frames]
+public class BusBenchmark
+{
+    public static void main(String args[]) throws Exception
+    {
+        int frames = (args.length > 0) ? Integer.parseInt(args[0]) : 2000000;
+
+        System.out.println(frames + " frames, " + Runtime.getRuntime().availableProcessors() +
+                           " processors");
+        for (int consumers : new int[] {1, 2, 4}) {
+            run(consumers, frames);
+        }
+    }
+
+    static void run(int num_consumers, final int frames) throws Exception
+    {
+        final SampleBus bus = new SampleBus(RAIGDriver.QUEUE_CAPACITY, FrameDecoder.MAX_FRAME_SAMPLES,
+                                            SampleRing.OverflowPolicy.BLOCK);
+        final long received[] = new long[num_consumers];
+        final boolean in_order[] = new boolean[num_consumers];
+        final long cpu_nanos[] = new long[num_consumers];
+        final ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        Thread threads[] = new Thread[num_consumers];
+        for (int c = 0; c < num_consumers; c++) {
+            final int n = c;
+            final SampleBus.Consumer consumer = bus.subscribe();
+            threads[c] = new Thread() {
+                public void run()
+                {
+                    long cpu_start = mx.getCurrentThreadCpuTime();
+                    long expected = 0;
+                    boolean ok = true;
+                    double sum = 0;
+                    try {
+                        while (expected < frames) {
+                            SampleBatch b = consumer.poll(1, TimeUnit.SECONDS);
+                            if (b == null) {
+                                break;
+                            }
+                            ok &= (b.timestamp == expected++);
+                            for (int i = 0; i < b.size; i++) {
+                                sum += b.rate[3*i];
+                            }
+                            consumer.release(b);
+                        }
+                    }
+                    catch (InterruptedException e) { }
+                    cpu_nanos[n] = mx.getCurrentThreadCpuTime() - cpu_start;
+                    received[n] = expected;
+                    in_order[n] = ok && sum >= 0;
+                    consumer.close();
+                }
+            };
+            threads[c].start();
+        }
+
+        long start = System.nanoTime();
+        long cpu_start = mx.getCurrentThreadCpuTime();
+        for (int i = 0; i < frames; i++) {
+            SampleBatch b = bus.acquire();
+            b.timestamp = i;
+            for (int id = 0; id < FrameDecoder.MAX_FRAME_SAMPLES; id++) {
+                b.add(id, (short)id, (short)0, (short)0, (short)0, (short)0, (short)1, (short)25);
+            }
+            bus.publish(b);
+        }
+        long producer_nanos = mx.getCurrentThreadCpuTime() - cpu_start;
+        for (Thread t : threads) {
+            t.join();
+        }
+        double secs = (System.nanoTime() - start)/1e9;
+        long consumer_nanos = 0;
+        for (int c = 0; c < num_consumers; c++) {
+            consumer_nanos += cpu_nanos[c];
+        }
+
+        boolean ok = true;
+        for (int c = 0; c < num_consumers; c++) {
+            ok &= (received[c] == frames) && in_order[c];
+        }
+        // With the BLOCK policy every consumer reads at the publish rate, so
+        // that is the throughput; it falls when consumers share cores
+        System.out.format("%d consumer%s  %10.0f frames/s per consumer  CPU ns/frame: producer %5.0f, consumer %5.0f  %s%n",
+                          num_consumers, (num_consumers == 1) ? " " : "s", frames/secs,
+                          (double)producer_nanos/frames, (double)consumer_nanos/num_consumers/frames,
+                          ok ? "every frame in order" : "FRAMES LOST");
+    }
+}
@@ -0,0 +1,30 @@
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+
+// Records the raw bytes from the RAIG board for later replay
+// Usage: CaptureFile [file] [seconds]
+public class CaptureFile
+{
+
+    public static void main(String args[]) throws IOException
+    {
+        String file = (args.length > 0) ? args[0] : "capture.raig";
+        long seconds = (args.length > 1) ? Long.parseLong(args[1]) : 60;
+
+        RAIGDriver driver = RAIGDriver.getSingleton();
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        driver.setCapture(out);
+        System.out.println("Capturing to " + file + " for " + seconds + " seconds");
+
+        try {
+            Thread.sleep(seconds*1000);
+        }
+        catch (Exception e) { }
+
+        driver.setCapture(null);
+        out.close();
+        driver.close();
+        System.out.println("Done");
+    }
+}
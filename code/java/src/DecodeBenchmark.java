@@ -0,0 +1,220 @@
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+
+// Measures frame decoding throughput in frames/sec
+// Usage: DecodeBenchmark [-fuzz rate] [recorded_stream.bin]
+// A recorded stream is a raw dump of the bytes sent by the Arduino. Without
+// one, a canned stream of firmware-format frames (3 LSM330s, 4 MPU6050s) is used.
+// The stream is fed to the decoder in chunks of several sizes - a chunk size
+// of 1 is what a byte-at-a-time reader hands the decoder.
+// With -fuzz, that fraction of the bytes of the stream have random bits
+// flipped first, and the frames decoded from it are checked against those
+// of the clean stream.
+public class DecodeBenchmark
+{
+    static final int CHUNK_SIZES[] = {1, 16, 64, 256, 4096};
+    // Chunk size used to measure how soon decoding recovers
+    static final int RECOVERY_CHUNK = 16;
+    // Serial link speed (bytes/sec at 115200 baud)
+    static final double LINK_BYTES_PER_SEC = 11520.0;
+
+    public static void main(String args[]) throws IOException
+    {
+        double fuzz = 0.0;
+        String file = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-fuzz") && i + 1 < args.length) {
+                fuzz = Double.parseDouble(args[++i]);
+            } else {
+                file = args[i];
+            }
+        }
+
+        byte stream[];
+        if (file != null) {
+            stream = readFile(file);
+        } else {
+            stream = FrameEncoder.cannedStream(20000, 3, 4, 0);
+        }
+
+        System.out.println("Stream: " + stream.length + " bytes");
+        if (fuzz > 0.0) {
+            fuzz(stream, fuzz);
+            return;
+        }
+        for (int c = 0; c < CHUNK_SIZES.length; c++) {
+            // Warm up, then measure
+            run(stream, CHUNK_SIZES[c], 1000);
+            run(stream, CHUNK_SIZES[c], 3000);
+        }
+    }
+
+    // Decode the stream repeatedly for at least millis, and print the frame rate
+    static void run(byte stream[], int chunk, long millis)
+    {
+        BatchQueue lsms = new BatchQueue(RAIGDriver.QUEUE_CAPACITY, FrameDecoder.MAX_FRAME_SAMPLES,
+                                         SampleRing.OverflowPolicy.DROP_OLDEST);
+        BatchQueue mpus = new BatchQueue(RAIGDriver.QUEUE_CAPACITY, FrameDecoder.MAX_FRAME_SAMPLES,
+                                         SampleRing.OverflowPolicy.DROP_OLDEST);
+        FrameDecoder decoder = new FrameDecoder(lsms, mpus);
+        long count = 0;
+
+        long bytes = 0;
+        long start = System.nanoTime();
+        long end = start + millis*1000000L;
+        long now = start;
+        while (now < end) {
+            for (int off = 0; off < stream.length; off += chunk) {
+                decoder.decode(stream, off, Math.min(chunk, stream.length - off));
+                count += drain(lsms) + drain(mpus);
+            }
+            bytes += stream.length;
+            now = System.nanoTime();
+        }
+
+        double secs = (now - start)/1e9;
+        System.out.format("chunk %5d: %12.0f frames/sec %10.0f samples/sec %8.1f MB/sec%n",
+                          chunk,
+                          decoder.getFrameCount()/secs,
+                          count/secs,
+                          bytes/secs/1e6);
+    }
+
+    // Decode a corrupted copy of the stream and compare it with the clean one
+    static void fuzz(byte clean[], double rate)
+    {
+        // Fingerprints of the frames in the clean stream
+        Map<Long, Long> expected = new HashMap<Long, Long>();
+        decodeAll(clean, 4096, expected, null, null);
+
+        Random rand = new Random(1);
+        byte stream[] = clean.clone();
+        List<Integer> corrupted = new ArrayList<Integer>();
+        for (int i = 0; i < stream.length; i++) {
+            if (rand.nextDouble() < rate) {
+                stream[i] ^= (byte)(1 + rand.nextInt(255));
+                corrupted.add(i);
+            }
+        }
+        System.out.println("Corrupted " + corrupted.size() + " bytes (rate " + rate + ")");
+
+        // Throughput on the corrupted stream
+        for (int c = 0; c < CHUNK_SIZES.length; c++) {
+            run(stream, CHUNK_SIZES[c], 1000);
+            run(stream, CHUNK_SIZES[c], 3000);
+        }
+
+        // Frame by frame check, noting where each good frame came out
+        long good_at[] = new long[expected.size() + 1];
+        int counts[] = new int[2];
+        FrameDecoder decoder = decodeAll(stream, RECOVERY_CHUNK, expected, good_at, counts);
+        int good = counts[0];
+        int garbage = counts[1];
+
+        // Bytes from each corrupted byte to the next good frame
+        long total = 0;
+        long worst = 0;
+        int recovered = 0;
+        int g = 0;
+        for (int c : corrupted) {
+            while (g < good && good_at[g] <= c) {
+                g++;
+            }
+            if (g < good) {
+                long bytes = good_at[g] - c;
+                total += bytes;
+                worst = Math.max(worst, bytes);
+                recovered++;
+            }
+        }
+        double mean = (recovered > 0) ? (double)total/recovered : 0.0;
+
+        System.out.println("Frames: " + expected.size()/2 + " sent, " +
+                           decoder.getFrameCount() + " decoded, " +
+                           decoder.getRejectedCount() + " rejected, " +
+                           decoder.getSkippedBytes() + " bytes skipped");
+        System.out.println("Batches: " + good + " correct, " + garbage + " garbage");
+        System.out.format("Recovery: %.1f bytes mean (%.1f ms), %d bytes max (%.1f ms) at 115200 baud%n",
+                          mean, 1000.0*mean/LINK_BYTES_PER_SEC,
+                          worst, 1000.0*worst/LINK_BYTES_PER_SEC);
+    }
+
+    // Decode a stream once in chunks
+    // Without good_at, records the fingerprint of every batch in frames.
+    // Otherwise checks every batch against frames, counting correct ones in
+    // counts[0] and wrong ones in counts[1], and stores the stream offset
+    // of the end of the chunk each correct batch came out of in good_at.
+    static FrameDecoder decodeAll(byte stream[], int chunk, Map<Long, Long> frames,
+                                  long good_at[], int counts[])
+    {
+        BatchQueue lsms = new BatchQueue(RAIGDriver.QUEUE_CAPACITY, FrameDecoder.MAX_FRAME_SAMPLES,
+                                         SampleRing.OverflowPolicy.DROP_OLDEST);
+        BatchQueue mpus = new BatchQueue(RAIGDriver.QUEUE_CAPACITY, FrameDecoder.MAX_FRAME_SAMPLES,
+                                         SampleRing.OverflowPolicy.DROP_OLDEST);
+        FrameDecoder decoder = new FrameDecoder(lsms, mpus);
+        for (int off = 0; off < stream.length; off += chunk) {
+            int len = Math.min(chunk, stream.length - off);
+            decoder.decode(stream, off, len);
+            for (int type = 0; type < 2; type++) {
+                BatchQueue q = (type == 0) ? lsms : mpus;
+                SampleBatch b;
+                while ((b = q.poll()) != null) {
+                    long key = 2*b.timestamp + type;
+                    long hash = fingerprint(b);
+                    if (good_at == null) {
+                        frames.put(key, hash);
+                    } else {
+                        Long want = frames.get(key);
+                        if (want != null && want == hash) {
+                            good_at[counts[0]++] = off + len;
+                        } else {
+                            counts[1]++;
+                        }
+                    }
+                    q.release(b);
+                }
+            }
+        }
+        return decoder;
+    }
+
+    static long fingerprint(SampleBatch b)
+    {
+        long h = b.size;
+        for (int s = 0; s < b.size; s++) {
+            h = 31*h + b.id[s];
+            h = 31*h + b.temp[s];
+            for (int n = 0; n < 3; n++) {
+                h = 31*h + b.rate[3*s+n];
+                h = 31*h + b.accel[3*s+n];
+            }
+        }
+        return h;
+    }
+
+    // Consume all queued batches, returns the number of samples in them
+    static int drain(BatchQueue q)
+    {
+        int samples = 0;
+        SampleBatch b;
+        while ((b = q.poll()) != null) {
+            samples += b.size;
+            q.release(b);
+        }
+        return samples;
+    }
+
+    static byte[] readFile(String name) throws IOException
+    {
+        File f = new File(name);
+        byte data[] = new byte[(int)f.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+}
@@ -0,0 +1,154 @@
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+import java.util.concurrent.CompletableFuture;
+
+// Keeps track of the open RAIG boards by board id
+// Boards are numbered in the order they are opened, starting at 0. A board
+// only sends frames a while after its port is opened (the Arduino resets), so
+// all the ports given to open() are opened before waiting for any board, and
+// openAsync() does not wait at all. A board whose port failed to open or
+// that stayed silent is closed and replaced, under the same id, the next time
+// its port is opened (getDefault() does this for board 0). In imu.conf, the sensors of board 0 use the usual prefix (e.g.
+// "MPU6050_0_2_KR") and board b uses the type followed by "_BOARD<b>"
+// (e.g. "MPU6050_BOARD1_0_2_KR").
+public class DriverRegistry
+{
+    private static final List<RAIGDriver> boards = new ArrayList<RAIGDriver>();
+
+    // Open boards on the given ports and wait until each is sending frames
+    // or has failed to within RAIGDriver.READY_TIMEOUT_MILLIS
+    // Returns the new drivers, whose board ids follow the ones already open
+    public static RAIGDriver[] open(String ports[])
+    {
+        RAIGDriver opened[] = register(ports, RAIGDriver.READY_TIMEOUT_MILLIS);
+        for (RAIGDriver d : opened) {
+            d.awaitReady();
+        }
+        return opened;
+    }
+
+    // Open boards on the given ports without waiting for them
+    // The drivers are registered at once, and the future completes with them
+    // when every board is sending frames, or fails with the first error (see
+    // RAIGDriver.getReady)
+    public static CompletableFuture<RAIGDriver[]> openAsync(String ports[], long ready_millis)
+    {
+        final RAIGDriver opened[] = register(ports, ready_millis);
+        CompletableFuture<?> ready[] = new CompletableFuture<?>[opened.length];
+        for (int i = 0; i < opened.length; i++) {
+            ready[i] = opened[i].getReady();
+        }
+        return CompletableFuture.allOf(ready).thenApply(v -> opened);
+    }
+
+    private static synchronized RAIGDriver[] register(String ports[], long ready_millis)
+    {
+        RAIGDriver opened[] = new RAIGDriver[ports.length];
+        for (int i = 0; i < ports.length; i++) {
+            int id = failedBoard(ports[i]);
+            if (id >= 0) {
+                boards.get(id).close();
+                opened[i] = new RAIGDriver(ports[i], id, ready_millis);
+                boards.set(id, opened[i]);
+            } else {
+                opened[i] = new RAIGDriver(ports[i], boards.size(), ready_millis);
+                boards.add(opened[i]);
+            }
+        }
+        return opened;
+    }
+
+    // Id of the failed board on port, or -1 if there is none
+    private static int failedBoard(String port)
+    {
+        for (int b = 0; b < boards.size(); b++) {
+            RAIGDriver d = boards.get(b);
+            if (d.hasFailed() && port.equals(d.getPortName())) {
+                return b;
+            }
+        }
+        return -1;
+    }
+
+    // Board 0, opened on the default port if no board is open yet, or opened
+    // again if it failed
+    // Waits until it is sending frames, returns a failed board if it still fails
+    public static RAIGDriver getDefault()
+    {
+        RAIGDriver d = defaultBoard();
+        d.awaitReady();
+        return d;
+    }
+
+    // Board 0 without waiting, see RAIGDriver.getReady
+    public static CompletableFuture<RAIGDriver> getDefaultAsync()
+    {
+        return defaultBoard().getReady();
+    }
+
+    private static synchronized RAIGDriver defaultBoard()
+    {
+        if (boards.isEmpty()) {
+            register(new String[] {RAIGDriver.DEFAULT_PORT}, RAIGDriver.READY_TIMEOUT_MILLIS);
+        } else if (boards.get(0).hasFailed()) {
+            register(new String[] {boards.get(0).getPortName()}, RAIGDriver.READY_TIMEOUT_MILLIS);
+        }
+        return boards.get(0);
+    }
+
+    public static synchronized RAIGDriver get(int board)
+    {
+        return boards.get(board);
+    }
+
+    public static synchronized int getNumBoards()
+    {
+        return boards.size();
+    }
+
+    public static synchronized void closeAll()
+    {
+        for (RAIGDriver d : boards) {
+            d.close();
+        }
+        boards.clear();
+    }
+
+    // imu.conf prefix of the given type of sensor on a board
+    public static String confPrefix(IMU.IMUType type, int board)
+    {
+        return (board == 0) ? type.name() : type.name() + "_BOARD" + board;
+    }
+
+    // One source for the given type of sensor on every open board,
+    // subscribed to that type on each of them
+    // Sensor ids are numbered across boards in board order, with the number
+    // of sensors of each board taken from conf
+    public static synchronized MultiBoardSource getSource(IMU.IMUType type, Properties conf)
+    {
+        SampleSource sources[] = new SampleSource[boards.size()];
+        int sensors[] = new int[boards.size()];
+        for (int b = 0; b < boards.size(); b++) {
+            sources[b] = boards.get(b).subscribe(type);
+            sensors[b] = Integer.parseInt(conf.getProperty(confPrefix(type, b) + "_NUM_SENSORS"));
+        }
+        return new MultiBoardSource(sources, sensors, MultiBoardSource.Alignment.ARRIVAL);
+    }
+
+    // An IMU that fuses the given type of sensor on every open board
+    public static IMU createIMU(IMU.IMUType type)
+    {
+        Properties conf = IMU.loadConf();
+        String prefixes[];
+        MultiBoardSource source;
+        synchronized (DriverRegistry.class) {
+            prefixes = new String[boards.size()];
+            for (int b = 0; b < prefixes.length; b++) {
+                prefixes[b] = confPrefix(type, b);
+            }
+            source = getSource(type, conf);
+        }
+        return new IMU(conf, prefixes, source);
+    }
+}
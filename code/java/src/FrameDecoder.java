@@ -0,0 +1,371 @@
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+
+// Decodes the RAIG serial message stream (see raig.ino) into SampleBatches
+// Bytes can be handed over in chunks of any size - a partial record is kept
+// in the decoder's buffer until the rest of it arrives, so decoding resumes
+// where the previous chunk left off. Samples are written straight into
+// batches taken from the output queues, so decoding does not allocate.
+//
+// Every frame ends with a checksum, the XOR of all of its bytes. A frame is
+// only published if its checksum matches, its sensor ids are plausible and
+// its timestamp is shortly after the last good one. Its bytes are kept
+// until then, so when a frame is rejected (or an unknown message type or
+// an overlong frame shows up) decoding restarts at the next message type
+// byte after the start of the bad frame. The checksum is only one byte, and
+// the tail of a bad frame can pass it, so the first frame accepted after a
+// resync must also start right behind a timestamp message. A corrupted byte
+// costs the frame it is in and usually the one after it.
+//
+// Each sensor type has a mask of the sensor ids to decode. Records of other
+// sensors are still checked but not decoded, and a frame with no samples
+// left is not queued, so a stream nobody reads costs next to nothing.
+public class FrameDecoder
+{
+    // Message types
+    static final byte MSG_LSM330 = 'L';
+    static final byte MSG_MPU6050 = 'M';
+    static final byte MSG_TIMESTAMP = 'T';
+
+    // Record lengths (not including the message type byte)
+    // LSM330: ID, 6 bytes gyro, 6 bytes accel, 1 byte temperature
+    static final int LSM330_LEN = 14;
+    // MPU6050: ID, 6 bytes gyro, 6 bytes accel, 2 bytes temperature
+    static final int MPU6050_LEN = 15;
+    // Timestamp: 4 bytes time, 1 byte checksum
+    static final int TIMESTAMP_LEN = 5;
+
+    // Maximum number of samples of one sensor type in a frame
+    // (the Arduino sends at most 256 bytes per frame)
+    static final int MAX_FRAME_SAMPLES = 32;
+    static final int MAX_FRAME_BYTES = 256;
+    // Sensor mask with every id set
+    static final int ALL_SENSORS = -1;
+    // Largest time step accepted between frames (ms), and how many frames
+    // failing it to reject before taking the board clock to have jumped
+    static final long MAX_TIME_STEP = 5000;
+    static final int MAX_TIME_REJECTS = 64;
+
+    // Queues that decoded frames are published to
+    private BatchSink lsm_out;
+    private BatchSink mpu_out;
+
+    // Reusable buffer of received bytes, from the start of the frame being
+    // decoded (buf_start) to the end of the data (buf_end), and the next
+    // message to decode (pos)
+    private byte buf[] = new byte[4096];
+    private int buf_start = 0;
+    private int buf_end = 0;
+    private int pos = 0;
+
+    // Samples of the frame currently being decoded
+    private SampleBatch newLsms;
+    private SampleBatch newMpus;
+
+    // Number of complete frames decoded
+    private long frames = 0;
+    // Number of frames thrown away, and bytes skipped to find the next frame
+    private long rejected = 0;
+    private long skipped = 0;
+    // Whether buf_start follows a good frame
+    private boolean synced = false;
+    // Where the last timestamp message seen while resyncing ends, and
+    // whether buf_start is there
+    private int after_time = -1;
+    private boolean aligned = false;
+    // Timestamp of the last good frame, and frames since rejected for theirs
+    private boolean have_time = false;
+    private long last_time = 0;
+    private int time_rejects = 0;
+    // Board id put on every batch
+    private int board = 0;
+    // Bit id set for every sensor id to decode, per sensor type
+    private volatile int lsm_mask = ALL_SENSORS;
+    private volatile int mpu_mask = ALL_SENSORS;
+
+    public FrameDecoder(BatchSink lsms, BatchSink mpus)
+    {
+        lsm_out = lsms;
+        mpu_out = mpus;
+        newLsms = lsm_out.acquire();
+        newMpus = mpu_out.acquire();
+    }
+
+    // Decode len bytes of data starting at off
+    public void decode(byte data[], int off, int len)
+    {
+        decode(data, off, len, 0);
+    }
+
+    // Decode bytes that were received at System.nanoTime() rx_nanos
+    // (0 for the time they are decoded at)
+    public void decode(byte data[], int off, int len, long rx_nanos)
+    {
+        append(data, off, len);
+        int lsms = lsm_mask;
+        int mpus = mpu_mask;
+
+        // State machine processes messages
+        while (pos < buf_end) {
+            int avail = buf_end - pos;
+            switch (buf[pos]) {
+                case MSG_LSM330:
+                    if (avail < LSM330_LEN + 1) {
+                        return;
+                    }
+                    if (!validId(buf[pos + 1])) {
+                        reject();
+                        break;
+                    }
+                    // Samples past the batch capacity are dropped
+                    if ((lsms >>> buf[pos + 1] & 1) != 0 && !newLsms.isFull()) {
+                        decodeLSM330(buf, pos + 1, newLsms);
+                    }
+                    pos += LSM330_LEN + 1;
+                    break;
+                case MSG_MPU6050:
+                    if (avail < MPU6050_LEN + 1) {
+                        return;
+                    }
+                    if (!validId(buf[pos + 1])) {
+                        reject();
+                        break;
+                    }
+                    if ((mpus >>> buf[pos + 1] & 1) != 0 && !newMpus.isFull()) {
+                        decodeMPU6050(buf, pos + 1, newMpus);
+                    }
+                    pos += MPU6050_LEN + 1;
+                    break;
+                case MSG_TIMESTAMP:
+                    if (avail < TIMESTAMP_LEN + 1) {
+                        return;
+                    }
+                    long time = decodeTimestamp(buf, pos + 1);
+                    pos += TIMESTAMP_LEN + 1;
+                    if (checksum(buf, buf_start, pos) != 0) {
+                        reject();
+                        break;
+                    }
+                    if (!synced && have_time && !aligned) {
+                        resync();
+                        break;
+                    }
+                    if (have_time && (time < last_time || time - last_time > MAX_TIME_STEP)
+                        && ++time_rejects < MAX_TIME_REJECTS) {
+                        reject();
+                        break;
+                    }
+                    buf_start = pos;
+                    synced = true;
+                    have_time = true;
+                    last_time = time;
+                    time_rejects = 0;
+                    frames++;
+                    // Add to queues
+                    long now = System.nanoTime();
+                    long rx = (rx_nanos != 0) ? rx_nanos : now;
+                    if (!newLsms.isEmpty()) {
+                        newLsms.timestamp = time;
+                        newLsms.board = board;
+                        newLsms.rx_nanos = rx;
+                        newLsms.host_nanos = now;
+                        lsm_out.publish(newLsms);
+                        newLsms = lsm_out.acquire();
+                    }
+                    if (!newMpus.isEmpty()) {
+                        newMpus.timestamp = time;
+                        newMpus.board = board;
+                        newMpus.rx_nanos = rx;
+                        newMpus.host_nanos = now;
+                        mpu_out.publish(newMpus);
+                        newMpus = mpu_out.acquire();
+                    }
+                    break;
+                default: // Error in message
+                    reject();
+                    break;
+            }
+            if (pos - buf_start > MAX_FRAME_BYTES) {
+                reject();
+            }
+        }
+    }
+
+    // Throw away a bad frame
+    // Only the first bad frame after a good one is counted, the others are
+    // misaligned attempts at finding the next frame
+    private void reject()
+    {
+        if (synced) {
+            rejected++;
+        }
+        resync();
+    }
+
+    // Drop the frame being decoded and restart at the next byte after its
+    // start that could begin a message
+    private void resync()
+    {
+        synced = false;
+        newLsms.clear();
+        newMpus.clear();
+        if (buf[buf_start] == MSG_TIMESTAMP) {
+            after_time = buf_start + TIMESTAMP_LEN + 1;
+        }
+        int p = buf_start + 1;
+        while (p < buf_end) {
+            byte b = buf[p];
+            if (b == MSG_LSM330 || b == MSG_MPU6050 || b == MSG_TIMESTAMP) {
+                break;
+            }
+            p++;
+        }
+        skipped += p - buf_start;
+        buf_start = p;
+        pos = p;
+        aligned = (p == after_time);
+    }
+
+    // XOR of the bytes from start to end, 0 for a frame with a good checksum
+    static byte checksum(byte b[], int start, int end)
+    {
+        byte x = 0;
+        for (int i = start; i < end; i++) {
+            x ^= b[i];
+        }
+        return x;
+    }
+
+    static boolean validId(byte id)
+    {
+        return id >= 0 && id < MAX_FRAME_SAMPLES;
+    }
+
+    // Tag decoded frames with a board id
+    public void setBoard(int b)
+    {
+        board = b;
+    }
+
+    // Decode only the sensors of a type whose id bits are set in mask
+    // (0 for none, ALL_SENSORS for all), from the next decode() on
+    public void setSensorMask(IMU.IMUType type, int mask)
+    {
+        switch (type) {
+            case LSM330:
+                lsm_mask = mask;
+                break;
+            case MPU6050:
+                mpu_mask = mask;
+                break;
+        }
+    }
+
+    public int getSensorMask(IMU.IMUType type)
+    {
+        return (type == IMU.IMUType.LSM330) ? lsm_mask : mpu_mask;
+    }
+
+    // Number of complete frames decoded so far
+    public long getFrameCount()
+    {
+        return frames;
+    }
+
+    // Number of frames thrown away for a bad checksum, bad sensor id or length
+    public long getRejectedCount()
+    {
+        return rejected;
+    }
+
+    // Number of bytes skipped while looking for the start of a frame
+    public long getSkippedBytes()
+    {
+        return skipped;
+    }
+
+    // Drop any partially decoded frame
+    public void reset()
+    {
+        buf_start = 0;
+        buf_end = 0;
+        pos = 0;
+        after_time = -1;
+        synced = false;
+        have_time = false;
+        time_rejects = 0;
+        newLsms.clear();
+        newMpus.clear();
+    }
+
+    // Add new bytes behind the undecoded ones, compacting or growing the buffer if needed
+    private void append(byte data[], int off, int len)
+    {
+        int pending = buf_end - buf_start;
+        if (buf_end + len > buf.length) {
+            byte dest[] = buf;
+            if (pending + len > buf.length) {
+                dest = new byte[Math.max(2*buf.length, pending + len)];
+            }
+            System.arraycopy(buf, buf_start, dest, 0, pending);
+            buf = dest;
+            pos -= buf_start;
+            after_time -= buf_start;
+            buf_start = 0;
+            buf_end = pending;
+        }
+        System.arraycopy(data, off, buf, buf_end, len);
+        buf_end += len;
+    }
+
+    //
+    //
+    // Record decoders
+    // p is the index of the first byte after the message type
+    //
+    //
+
+    // LSM330 data is little-endian
+    static void decodeLSM330(byte b[], int p, SampleBatch batch)
+    {
+        batch.add(b[p],
+                  // Rate data
+                  (short)((b[p+1] & 0xFF) | ((b[p+2] & 0xFF) << 8)),
+                  (short)((b[p+3] & 0xFF) | ((b[p+4] & 0xFF) << 8)),
+                  (short)((b[p+5] & 0xFF) | ((b[p+6] & 0xFF) << 8)),
+                  // Acceleration data
+                  (short)((b[p+7] & 0xFF) | ((b[p+8] & 0xFF) << 8)),
+                  (short)((b[p+9] & 0xFF) | ((b[p+10] & 0xFF) << 8)),
+                  (short)((b[p+11] & 0xFF) | ((b[p+12] & 0xFF) << 8)),
+                  // Temperature data (signed)
+                  b[p+13]);
+    }
+
+    // MPU6050 data is big-endian
+    static void decodeMPU6050(byte b[], int p, SampleBatch batch)
+    {
+        batch.add(b[p],
+                  // Rate data
+                  (short)((b[p+1] << 8) | (b[p+2] & 0xFF)),
+                  (short)((b[p+3] << 8) | (b[p+4] & 0xFF)),
+                  (short)((b[p+5] << 8) | (b[p+6] & 0xFF)),
+                  // Acceleration data
+                  (short)((b[p+7] << 8) | (b[p+8] & 0xFF)),
+                  (short)((b[p+9] << 8) | (b[p+10] & 0xFF)),
+                  (short)((b[p+11] << 8) | (b[p+12] & 0xFF)),
+                  // Temperature data (unsigned)
+                  ((b[p+13] & 0xFF) << 8) | (b[p+14] & 0xFF));
+    }
+
+    // Timestamp is big-endian milliseconds since the Arduino started
+    // (the top byte is sign extended, as the original decoder did)
+    static long decodeTimestamp(byte b[], int p)
+    {
+        long time = b[p];
+        time = ((time << 8) | (b[p+1] & 0xFF));
+        time = ((time << 8) | (b[p+2] & 0xFF));
+        time = ((time << 8) | (b[p+3] & 0xFF));
+        return time;
+    }
+}
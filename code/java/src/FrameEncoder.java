@@ -0,0 +1,103 @@
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+
+// Builds RAIG message streams the same way the Arduino does (see raig.ino)
+// Used to create canned byte streams for benchmarking and simulation
+public class FrameEncoder
+{
+    private ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private byte checksum = 0;
+
+    // Add an LSM330 message (little-endian data, 1 byte temperature)
+    public void addLSM330(int id, short rate[], short accel[], int temp)
+    {
+        put(FrameDecoder.MSG_LSM330);
+        put(id);
+        for (int i = 0; i < 3; i++) {
+            put(rate[i]);
+            put(rate[i] >> 8);
+        }
+        for (int i = 0; i < 3; i++) {
+            put(accel[i]);
+            put(accel[i] >> 8);
+        }
+        put(temp);
+    }
+
+    // Add an MPU6050 message (big-endian data, 2 bytes temperature)
+    public void addMPU6050(int id, short rate[], short accel[], int temp)
+    {
+        put(FrameDecoder.MSG_MPU6050);
+        put(id);
+        for (int i = 0; i < 3; i++) {
+            put(rate[i] >> 8);
+            put(rate[i]);
+        }
+        for (int i = 0; i < 3; i++) {
+            put(accel[i] >> 8);
+            put(accel[i]);
+        }
+        put(temp >> 8);
+        put(temp);
+    }
+
+    // Add the timestamp message and checksum that end a frame
+    public void addTimestamp(long time_millis)
+    {
+        put(FrameDecoder.MSG_TIMESTAMP);
+        put((int)(time_millis >> 24));
+        put((int)(time_millis >> 16));
+        put((int)(time_millis >> 8));
+        put((int)time_millis);
+        out.write(checksum);
+        checksum = 0;
+    }
+
+    // All bytes encoded so far
+    public byte[] toByteArray()
+    {
+        return out.toByteArray();
+    }
+
+    public int size()
+    {
+        return out.size();
+    }
+
+    private void put(int b)
+    {
+        checksum ^= (byte)b;
+        out.write(b);
+    }
+
+    // Create a stream of num_frames frames laid out like the firmware sends them,
+    // with random sensor data
+    public static byte[] cannedStream(int num_frames, int num_lsm, int num_mpu, long seed)
+    {
+        Random rand = new Random(seed);
+        FrameEncoder enc = new FrameEncoder();
+        short rate[] = new short[3];
+        short accel[] = new short[3];
+        long time = 0;
+        for (int f = 0; f < num_frames; f++) {
+            for (int i = 0; i < num_lsm; i++) {
+                for (int n = 0; n < 3; n++) {
+                    rate[n] = (short)rand.nextInt();
+                    accel[n] = (short)rand.nextInt();
+                }
+                enc.addLSM330(i, rate, accel, rand.nextInt(256) - 128);
+            }
+            for (int i = 0; i < num_mpu; i++) {
+                for (int n = 0; n < 3; n++) {
+                    rate[n] = (short)rand.nextInt();
+                    accel[n] = (short)rand.nextInt();
+                }
+                enc.addMPU6050(i, rate, accel, rand.nextInt(65536));
+            }
+            time += 22;
+            enc.addTimestamp(time);
+        }
+        return enc.toByteArray();
+    }
+}
@@ -0,0 +1,10 @@
+import java.util.*;
+import java.lang.*;
+
+// Told about every frame an IMU has processed (see IMU.addFrameListener)
+// Called on the IMU thread right after the frame's data is published, so it
+// must be quick and must never block. The data is read with IMUState.read().
+public interface FrameListener
+{
+    public void frameProcessed(IMUState state);
+}
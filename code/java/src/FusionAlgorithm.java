@@ -0,0 +1,32 @@
+import java.util.*;
+import java.lang.*;
+
+// A way of combining the sensors of an IMU into one estimate
+// The IMU calls update() from its processing thread once per frame, after
+// the frame's samples have been converted by their IMUData. Several
+// algorithms can run side by side on the same frames (see IMU.addFusion).
+public interface FusionAlgorithm
+{
+    // Short name for reports
+    String getName();
+
+    // Called when the algorithm is added to an IMU, and again after
+    // calibration or PSD estimation has changed the sensor constants
+    // This may allocate, update() should not.
+    void configure(IMU.IMUData sensors[]);
+
+    // Fold in one frame
+    // For every sample of frame whose sensor id is below active_sensors,
+    // sensors[id].getRate() and getDelta() hold the converted sample.
+    // dt is the time since the previous frame (sec), 0 for the first frame.
+    void update(SampleBatch frame, int active_sensors, double dt);
+
+    // Fused heading (rad) of each axis, written into out
+    void getHeadings(double out[]);
+
+    // Fused rate (rad/sec) of each axis, written into out
+    void getRates(double out[]);
+
+    // Set the fused heading (rad) of each axis, e.g. to ground truth
+    void setHeadings(double h[]);
+}
@@ -19,9 +19,11 @@ public class HeadFile
         mpu_thread.start();
 
         writer.println("MPU 0 Z Axis,MPU 1 Z Axis,MPU 2 Z Axis,MPU 3 Z Axis");
+        IMUState.Snapshot state = imu_mpu.newSnapshot();
         while (true) {
+            imu_mpu.readState(state);
             for (int i = 0; i < imu_mpu.getNumSensors(); i++) {
-                writer.print(imu_mpu.getSensorHeadings()[i][2]);
+                writer.print(state.headings[i][2]);
                 if (i+1 < imu_mpu.getNumSensors()) {
                     writer.print(",");
                 } else {
@@ -3,6 +3,9 @@ import java.util.*;
 import java.lang.*;
 import java.util.Enumeration;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 // This class interfaces with the RAIG driver to process
 // data from each invididual sensor, and fuse that data together
@@ -10,27 +13,186 @@ public class IMU extends Thread
 {
     // Constants
     static final int NUM_AXES = 3;
+    // Longest time run() waits for a frame before checking whether to halt
+    static final long HALT_CHECK_MILLIS = 100;
+    // Stationary time between temperature fit updates of the conversion (sec)
+    static final double TEMP_APPLY_SECONDS = 10.0;
+    // Raw temperature counts per degree C of the MPU6050, used to scale the fit
+    static final double DEFAULT_TEMP_SCALE = 340.0;
+    // Calibration time of run() when the bias cache cannot be used
+    static final long DEFAULT_CALIB_MILLIS = 500;
+    // Longest warmStart() waits for a frame to read the temperatures from
+    static final long WARM_START_WAIT_MILLIS = 200;
+    // While stationary, the offsets are averaged over the last
+    // BIAS_TIME_CONSTANT seconds and replaced every BIAS_UPDATE_SECONDS,
+    // once at least BIAS_MIN_SECONDS of still data have been averaged
+    static final double BIAS_TIME_CONSTANT = 30.0;
+    static final double BIAS_UPDATE_SECONDS = 2.0;
+    static final double BIAS_MIN_SECONDS = 1.0;
+    // Most one update may move an offset (rad/sec), about 0.1 deg/s a
+    // minute, well above thermal drift, so a turn too slow to be seen as
+    // motion is only learned as bias slowly
+    static final double MAX_BIAS_STEP = 0.00005;
+
+    // Indices of the built-in fusion algorithms (see getFusion)
+    public static final int FUSION_AVERAGE = 0;
+    public static final int FUSION_BEST = 1;
+    public static final int FUSION_WA = 2;
+    public static final int FUSION_WA2 = 3;
+    public static final int FUSION_KALMAN = 4;
+
+    // Stages of the latency histograms (see getLatency)
+    // Port event to frame queued, frame queued to state published, and both
+    public static final int LATENCY_RECEIVE = 0;
+    public static final int LATENCY_PROCESS = 1;
+    public static final int LATENCY_TOTAL = 2;
+    static final String LATENCY_NAMES[] = {"receive", "process", "total"};
 
     // Control Variables
     volatile private boolean halt = false;
+    // Set while the rig is known to be still, feeds the temperature fits
+    // and the offset tracking
+    volatile private boolean stationary = false;
+    // Sets stationary from the frames when enabled
+    volatile private boolean detect_stillness = false;
+    private final StillnessDetector stillness = new StillnessDetector();
+    // Average acceleration and rate of the active sensors, for the detector
+    private double det_accel[] = new double[NUM_AXES];
+    private double det_rate[] = new double[NUM_AXES];
+    // Offsets of earlier calibrations, null if not kept
+    volatile private BiasCache bias_cache = null;
+    private long calib_millis = DEFAULT_CALIB_MILLIS;
 
     // Averaged Sensor Information
     // Power Spectral Density values
     private double aNoiseSq[] = new double[NUM_AXES];
     private double a_psd_total_time = 0.0;
-    // Total calculated heading of each axis (rad)
-    private double aHead[] = new double[NUM_AXES];
 
     // EM Sensor Information
     // Power Spectral Density values
     private double waNoiseSq[] = new double[NUM_AXES];
     private double wa_psd_total_time = 0.0;
-    private double waHead[] = new double[NUM_AXES];
-    private double waHead2[] = new double[NUM_AXES];
-    // Sensor weights
-    private double waK[][];
-    private double waK2[][];
 
+    // Fusion algorithms run on every frame, and which ones are enabled
+    // The enabled flags are replaced as a whole when changed
+    private FusionAlgorithm fusions[] = new FusionAlgorithm[0];
+    private volatile boolean fusion_enabled[] = new boolean[0];
+    // Timestamp of the previous frame
+    private long prev_frame_time = 0;
+    // Scratch arrays for publishing
+    private double fused_head[] = new double[NUM_AXES];
+    private double fused_rate[] = new double[NUM_AXES];
+    private double quat[] = new double[4];
+
+    // 3D attitude of the rig, driven by the rates of one fusion algorithm
+    // and tilt-corrected with the average acceleration
+    private Attitude attitude = new Attitude();
+    private volatile int attitude_fusion = FUSION_WA;
+    // Average acceleration of the active sensors in the latest frame
+    private double avg_accel[] = new double[NUM_AXES];
+
+    // Allan variance of each sensor and of each fusion algorithm, per axis
+    // Only updated while enabled (see startAllan)
+    private volatile boolean allan_enabled = false;
+    private AllanVariance sensor_allan[][];
+    private AllanVariance fused_allan[][];
+
+    // Welch spectra of each sensor and of the sensor average, per axis
+    // Updated while enabled (see startSpectra) and during calculatePSD
+    private volatile boolean spectra_enabled = false;
+    private WelchPSD sensor_spectra[][];
+    private WelchPSD average_spectra[];
+    // Set by calculatePSD while run() is processing frames, so the fusion
+    // algorithms are reconfigured on the IMU thread between frames
+    private volatile boolean reconfigure = false;
+
+    // Latency of every frame that has host times, per stage
+    private final LatencyHistogram latency[] = {
+        new LatencyHistogram(), new LatencyHistogram(), new LatencyHistogram()
+    };
+
+    // Counters and gauges, published over JMX while run() is running
+    private static final AtomicInteger instances = new AtomicInteger();
+    private final Metrics metrics;
+    private final LongAdder frames_processed;
+    private final LongAdder samples_processed;
+    private final LongAdder negative_deltas;
+    private final LongAdder bad_ids;
+    private final LongAdder bias_updates;
+    // Time from the latest frame being queued to its state being published
+    private volatile long lag_nanos = 0;
+
+
+    // Conversion from raw sensor counts, frozen when a sensor is calibrated
+    // For each axis, with d = temp - temp_ref
+    //   rate  = raw*scale - bias - temp_poly[0]*d - temp_poly[1]*d^2 - ...  (rad/sec)
+    //   accel = raw*accel_scale - accel_bias                                (m/s^2)
+    // From imu.conf this is (raw - offset - (temp - start_temp)*tSen)*kRate
+    // and (raw - oAccel)*kAccel with the constants folded together; a
+    // TempFit can replace the bias and temperature terms. A table is never
+    // changed after it is built, so it can be swapped in as a whole.
+    public static final class Calibration
+    {
+        final double scale[] = new double[NUM_AXES];
+        final double bias[] = new double[NUM_AXES];
+        final double temp_ref;
+        final double temp_poly[][] = new double[NUM_AXES][];
+        final double accel_scale[] = new double[NUM_AXES];
+        final double accel_bias[] = new double[NUM_AXES];
+
+        Calibration(double kr[], double offset[], double ts[], double start_temp,
+                    double ka[], double oa[])
+        {
+            temp_ref = start_temp;
+            for (int i = 0; i < NUM_AXES; i++) {
+                scale[i] = kr[i];
+                bias[i] = offset[i]*kr[i];
+                temp_poly[i] = new double[] {ts[i]*kr[i]};
+                accel_scale[i] = ka[i];
+                accel_bias[i] = oa[i]*ka[i];
+            }
+        }
+
+        // Same scales as base, with bias and temperature terms from coeff[axis][j],
+        // the coefficient of (temp - temp_ref)^j
+        Calibration(Calibration base, double temp_ref, double coeff[][])
+        {
+            this.temp_ref = temp_ref;
+            for (int i = 0; i < NUM_AXES; i++) {
+                scale[i] = base.scale[i];
+                bias[i] = coeff[i][0];
+                temp_poly[i] = Arrays.copyOfRange(coeff[i], 1, coeff[i].length);
+                accel_scale[i] = base.accel_scale[i];
+                accel_bias[i] = base.accel_bias[i];
+            }
+        }
+
+        // Rate of an axis in rad/sec
+        double rate(int axis, double raw, double temp)
+        {
+            double d = temp - temp_ref;
+            double p[] = temp_poly[axis];
+            double t = 0.0;
+            for (int j = p.length - 1; j >= 0; j--) {
+                t = t*d + p[j];
+            }
+            return raw*scale[axis] - bias[axis] - t*d;
+        }
+
+        // Bias and temperature coefficients of an axis, as used by TempFit
+        double[] getCoefficients(int axis)
+        {
+            double c[] = new double[temp_poly[axis].length + 1];
+            c[0] = bias[axis];
+            System.arraycopy(temp_poly[axis], 0, c, 1, temp_poly[axis].length);
+            return c;
+        }
+
+        public double getTempRef()
+        {
+            return temp_ref;
+        }
+    }
 
     // This class calculates and stores data for a single sensor
     // Data is not automatically added to this class -
@@ -38,6 +200,9 @@ public class IMU extends Thread
     // samples into the class
     public class IMUData
     {
+        // Name in imu.conf and the bias cache, e.g. "MPU6050_0_"
+        private String key;
+
         // Gyroscope Data
         // Conversion constants (Raw to radians per sec)
         private double kRate[] = new double[NUM_AXES];
@@ -49,6 +214,15 @@ public class IMU extends Thread
         private double head[] = new double[NUM_AXES];
         // Calibration duration
         private double calib_total_time = 0;
+        private int calib_samples = 0;
+        // Raw rates and temperatures of still samples, exponentially
+        // weighted over BIAS_TIME_CONSTANT, for tracking the offsets
+        private double still_rate[] = new double[NUM_AXES];
+        private double still_temp = 0.0;
+        private double still_time = 0.0;
+        private int still_samples = 0;
+        // Still time since the offsets were last replaced
+        private double still_since_update = 0.0;
         // Power Spectral Density values
         private double noiseSq[] = new double[NUM_AXES];
         // PSD Calibration duration
@@ -67,15 +241,28 @@ public class IMU extends Thread
         // Acceleration (m/s^2)
         private double accel[] = new double[NUM_AXES];
 
+        // Attitude from this sensor's gyros alone
+        private Attitude att = new Attitude();
+
         // Temperature Data
         private double start_temp = 0.0;
         private double temp = 0.0;
         // Temperature sensitivity constants
         private double tSen[] = new double[NUM_AXES];
 
+        // Conversion used by add_samp and add_psd_samp
+        private volatile Calibration cal;
+
+        // Online fit of bias against temperature, fed while stationary
+        private volatile TempFit temp_fit;
+        private double fit_rate[] = new double[NUM_AXES];
+        // Stationary time added to the fit since it was last applied
+        private double fit_time = 0.0;
+
         public IMUData(double kr[])
         {
             kRate = kr;
+            freezeCalibration();
         }
 
         public IMUData(double kr[], double ka[], double oa[], double ts[])
@@ -84,55 +271,198 @@ public class IMU extends Thread
             kAccel = ka;
             oAccel = oa;
             tSen = ts;
+            freezeCalibration();
+        }
+
+        // Build the conversion table from the current offsets and constants
+        // Samples added with add_cal_samp are not used until this is called.
+        // A running temperature fit starts again from the new table, or its
+        // next apply would pull the bias back toward the old one.
+        public void freezeCalibration()
+        {
+            cal = new Calibration(kRate, getOffset(), tSen, start_temp, kAccel, oAccel);
+            TempFit f = temp_fit;
+            if (f != null) {
+                startTempFit(f.getOrder(), f.getTempScale());
+                temp_fit.setForgetting(f.getForgetting());
+            }
+        }
+
+        public Calibration getCalibration()
+        {
+            return cal;
+        }
+
+        // Start fitting bias against temperature with a polynomial of the
+        // given order, starting from the current conversion
+        public void startTempFit(int order, double temp_scale)
+        {
+            Calibration c = cal;
+            double prior[][] = new double[NUM_AXES][];
+            for (int i = 0; i < NUM_AXES; i++) {
+                prior[i] = c.getCoefficients(i);
+            }
+            fit_time = 0.0;
+            temp_fit = new TempFit(order, c.getTempRef(), temp_scale, prior);
         }
 
-        public void add_cal_samp(RAIGDriver.IMUSample samp, double time_diff)
+        // Stop fitting, the last applied conversion stays in use
+        public void stopTempFit()
+        {
+            temp_fit = null;
+        }
+
+        // The running fit, null if none
+        public TempFit getTempFit()
+        {
+            return temp_fit;
+        }
+
+        // Time the offsets were averaged over (sec)
+        public double getCalibrationTime()
+        {
+            return calib_total_time;
+        }
+
+        // Samples are passed as a batch and the index of the sample in it
+        public void add_cal_samp(SampleBatch samp, int s, double time_diff)
         {
             // Ignore new sample if it came before previous sample
             if (time_diff < 0) {
                 time_diff = 0;
             }
             for (int i = 0; i < NUM_AXES; i++) {
-                oRate[i] += time_diff*samp.rate[i];
+                oRate[i] += time_diff*samp.rate[3*s+i];
             }
             calib_total_time += time_diff;
-            start_temp = samp.temp;
+            calib_samples++;
+            start_temp = samp.temp[s];
         }
-        public void add_samp(RAIGDriver.IMUSample samp, double time_diff)
+        public void add_samp(SampleBatch samp, int s, double time_diff)
         {
             // Ignore new sample if it came before previous sample
             if (time_diff < 0.0) {
                 time_diff = 0.0;
             }
 
+            Calibration c = cal;
+            double t = samp.temp[s];
             for (int i = 0; i < NUM_AXES; i++) {
                 // Update gyroscope heading
-                rate[i] = (samp.rate[i] - getOffset()[i] - (samp.temp - start_temp)*tSen[i])*kRate[i];
-                //rate[i] = (samp.rate[i] - tOff[i] - temp*tSen[i])*kRate[i];
+                rate[i] = c.rate(i, samp.rate[3*s+i], t);
                 delta[i] = time_diff*rate[i];
                 head[i] += delta[i];
                 // Update acceleration
-                accel[i] = (samp.accel[i] - getAccelOffset()[i])*kAccel[i];
+                accel[i] = samp.accel[3*s+i]*c.accel_scale[i] - c.accel_bias[i];
             }
+            att.integrate(rate[0], rate[1], rate[2], time_diff);
 
             // Update temperature
-            temp = (double)samp.temp;
+            temp = t;
+
+            // Fit the uncompensated rates, and swap the result into the
+            // conversion now and then and when the still period ends
+            TempFit f = temp_fit;
+            if (f != null) {
+                boolean still = stationary;
+                if (still) {
+                    for (int i = 0; i < NUM_AXES; i++) {
+                        fit_rate[i] = samp.rate[3*s+i]*c.scale[i];
+                    }
+                    f.add(t, fit_rate);
+                    fit_time += time_diff;
+                }
+                if (fit_time >= TEMP_APPLY_SECONDS || (!still && fit_time > 0.0)) {
+                    cal = new Calibration(c, f.getTempRef(), f.getCoefficients());
+                    fit_time = 0.0;
+                }
+            }
+
+            trackOffset(samp, s, time_diff, stationary);
+        }
+
+        // Average the raw rates of still samples, and every
+        // BIAS_UPDATE_SECONDS and when the still period ends move the offsets
+        // toward the average, by at most MAX_BIAS_STEP (unless a temperature
+        // fit is running), and keep the result in the bias cache. The conversion is swapped as a whole,
+        // so headings carry on without a pause.
+        private void trackOffset(SampleBatch samp, int s, double time_diff, boolean still)
+        {
+            if (still) {
+                double w = Math.exp(-time_diff/BIAS_TIME_CONSTANT);
+                for (int i = 0; i < NUM_AXES; i++) {
+                    still_rate[i] = w*still_rate[i] + time_diff*samp.rate[3*s+i];
+                }
+                still_temp = w*still_temp + time_diff*samp.temp[s];
+                still_time = w*still_time + time_diff;
+                still_samples++;
+                still_since_update += time_diff;
+            } else if (still_since_update == 0.0) {
+                return;
+            }
+
+            if (still_since_update >= BIAS_UPDATE_SECONDS || !still) {
+                if (still_time >= BIAS_MIN_SECONDS) {
+                    double offset[] = getOffset();
+                    for (int i = 0; i < NUM_AXES; i++) {
+                        double step = MAX_BIAS_STEP/Math.abs(kRate[i]);
+                        offset[i] = Math.max(offset[i] - step, Math.min(offset[i] + step, still_rate[i]/still_time));
+                    }
+                    double t = still_temp/still_time;
+                    if (temp_fit == null) {
+                        setOffset(offset, t);
+                        bias_updates.increment();
+                    }
+                    BiasCache b = bias_cache;
+                    if (b != null) {
+                        b.put(key, t, still_samples, offset);
+                        if (!still) {
+                            b.saveAsync();
+                        }
+                    }
+                }
+                still_since_update = 0.0;
+            }
+            if (!still) {
+                Arrays.fill(still_rate, 0.0);
+                still_temp = 0.0;
+                still_time = 0.0;
+                still_samples = 0;
+            }
         }
         // Used to calculate the noise power spectral density in (rad/sqrt(sec))^2/Hz
-        public void add_psd_samp(RAIGDriver.IMUSample samp, double time_diff)
+        public void add_psd_samp(SampleBatch samp, int s, double time_diff)
         {
             // Ignore new sample if it came before previous sample
             if (time_diff < 0.0) {
                 time_diff = 0.0;
             }
+            Calibration c = cal;
+            double t = samp.temp[s];
             for (int i = 0; i < NUM_AXES; i++) {
-                noise[i] = (samp.rate[i] - getOffset()[i] - (samp.temp - start_temp)*tSen[i])*kRate[i];
+                noise[i] = c.rate(i, samp.rate[3*s+i], t);
 
-                noiseSq[i] += time_diff*Math.pow(noise[i],2.0);
+                noiseSq[i] += time_diff*noise[i]*noise[i];
             }
             psd_total_time += time_diff;
         }
 
+        // Use offsets (raw counts) measured at temp instead of calibrating
+        public void setOffset(double offset[], double temp)
+        {
+            // getOffset() divides by the time, so keep them as one second's sum
+            oRate = offset.clone();
+            calib_total_time = 1.0;
+            start_temp = temp;
+            freezeCalibration();
+        }
+
+        // Number of samples the offsets were averaged over
+        public int getCalibrationSamples()
+        {
+            return calib_samples;
+        }
+
         // Return sensor 0-biases in units of raw sensor counts
         public double[] getOffset()
         {
@@ -160,6 +490,8 @@ public class IMU extends Thread
         }
 
         // Rate Noise PSD in (rad/sqrt(sec))^2/Hz
+        // This is the mean squared noise, a single level that only describes
+        // white noise; IMU.getSensorSpectrum() has the spectrum
         public double[] getPSD()
         {
             if (psd_total_time == 0.0) {
@@ -203,11 +535,19 @@ public class IMU extends Thread
             return temp;
         }
 
+        // Gyro-only 3D attitude
+        public Attitude getAttitude()
+        {
+            return att;
+        }
+
         // Clear data so we can recalibrate etc.
         public void clearOffset()
         {
             oRate = new double[3];
             calib_total_time = 0;
+            calib_samples = 0;
+            freezeCalibration();
         }
         public void clearPSD()
         {
@@ -216,14 +556,18 @@ public class IMU extends Thread
         }
         public void clearHeading()
         {
-            head = new double[3];
+            Arrays.fill(head, 0.0);
+        }
+        public void clearAttitude()
+        {
+            att.reset();
         }
 
         // Set the heading to a specific value (if we can ground-truth heading etc.)
-        // Requires 3 element array
+        // Requires 3 element array, which is copied
         public void setHeading(double[] h)
         {
-            head = h;
+            System.arraycopy(h, 0, head, 0, NUM_AXES);
         }
     }
 
@@ -241,82 +585,134 @@ public class IMU extends Thread
     // IMU state data
     public IMUData[] imu_data;
     private long[] prev_samp_time;
-    private volatile LinkedList<RAIGDriver.IMUSamples> data_stream;
+    private SampleSource data_stream;
+    // Subscription taken by IMU(IMUType), cancelled when the IMU is done
+    private volatile RAIGDriver.Subscription own_subscription = null;
     private boolean calibrated;
+    // Data published for other threads after every frame
+    private IMUState state;
+    // Told after every frame, replaced as a whole when changed
+    private volatile FrameListener listeners[] = new FrameListener[0];
+    private final Object listener_lock = new Object();
 
-    // Warning: this function will take approx. 4 seconds on first call (to establish port connection)
+    // Waits on first call until the board is sending frames (see RAIGDriver.getReady)
     public IMU(IMUType type)
     {
-        String prefix = new String();
+        this(type, RAIGDriver.getSingleton().subscribe(type));
+        own_subscription = (RAIGDriver.Subscription)data_stream;
+    }
 
-        switch (type)
-        {
-            case LSM330:
-                prefix = "LSM330";
-                data_stream = RAIGDriver.getSingleton().lsm_data;
-                break;
-            case MPU6050:
-                prefix = "MPU6050";
-                data_stream = RAIGDriver.getSingleton().mpu_data;
-                break;
-        }
+    // Process frames from any source (live board, recording or simulation)
+    // Sensor constants are still loaded from imu.conf for the given type
+    public IMU(IMUType type, SampleSource source)
+    {
+        this(loadConf(), type.name(), source);
+    }
 
-        // Load values from properties file
-        Properties conf = new Properties();
-        try {
-            conf.load(new FileInputStream("imu.conf"));
-            // Load number of sensors
-            num_sensors = Integer.parseInt(conf.getProperty(prefix + "_NUM_SENSORS"));
-            
-            imu_data = new IMUData[num_sensors];
+    // Use the sensor constants in conf with the given prefix
+    // (as in imu.conf, e.g. "MPU6050_NUM_SENSORS", "MPU6050_0_2_KR")
+    public IMU(Properties conf, String prefix, SampleSource source)
+    {
+        this(conf, new String[] {prefix}, source);
+    }
 
-            // Loop through sensors
-            for (int i = 0; i < num_sensors; i++) {
+    // Sensors of several boards, with the constants of board b under
+    // prefixes[b] (see DriverRegistry), numbered in board order like
+    // MultiBoardSource does
+    public IMU(Properties conf, String prefixes[], SampleSource source)
+    {
+        data_stream = source;
+
+        // Load number of sensors, and the prefix and number on its board of each
+        List<String> sensor_prefix = new ArrayList<String>();
+        List<Integer> sensor_num = new ArrayList<Integer>();
+        for (String prefix : prefixes) {
+            int n = Integer.parseInt(conf.getProperty(prefix + "_NUM_SENSORS"));
+            for (int i = 0; i < n; i++) {
+                sensor_prefix.add(prefix);
+                sensor_num.add(i);
+            }
+        }
+        num_sensors = sensor_prefix.size();
 
-                // Constants for current sensor
-                double kr[] = new double[3];
-                double ka[] = new double[3];
-                double oa[] = new double[3];
-                double to[] = new double[3];
-                double ts[] = new double[3];
-                
-                // Loop through axes
-                for (int j = 0; j < 3; j++) {
-                    kr[j] = Double.parseDouble(conf.getProperty(prefix + "_" + i + "_" + j + "_KR"));
-                    ka[j] = Double.parseDouble(conf.getProperty(prefix + "_" + i + "_" + j + "_KA"));
-                    oa[j] = Double.parseDouble(conf.getProperty(prefix + "_" + i + "_" + j + "_OA"));
-                    to[j] = Double.parseDouble(conf.getProperty(prefix + "_" + i + "_" + j + "_TO"));
-                    ts[j] = Double.parseDouble(conf.getProperty(prefix + "_" + i + "_" + j + "_TS"));
-
-                    //System.out.println("Constants" + i + j + ":");
-                    //System.out.println(kr[j] + " " + ka[j] + " " + to[j] + " " + ts[j]);
-                }
+        imu_data = new IMUData[num_sensors];
 
-                // Create IMUData with constants
-                imu_data[i] = new IMUData(kr, ka, oa, ts);
+        // Loop through sensors
+        for (int i = 0; i < num_sensors; i++) {
+            String key = sensor_prefix.get(i) + "_" + sensor_num.get(i) + "_";
+
+            // Constants for current sensor
+            double kr[] = new double[3];
+            double ka[] = new double[3];
+            double oa[] = new double[3];
+            double to[] = new double[3];
+            double ts[] = new double[3];
+
+            // Loop through axes
+            for (int j = 0; j < 3; j++) {
+                kr[j] = Double.parseDouble(conf.getProperty(key + j + "_KR"));
+                ka[j] = Double.parseDouble(conf.getProperty(key + j + "_KA"));
+                oa[j] = Double.parseDouble(conf.getProperty(key + j + "_OA"));
+                to[j] = Double.parseDouble(conf.getProperty(key + j + "_TO"));
+                ts[j] = Double.parseDouble(conf.getProperty(key + j + "_TS"));
+
+                //System.out.println("Constants" + i + j + ":");
+                //System.out.println(kr[j] + " " + ka[j] + " " + to[j] + " " + ts[j]);
             }
-        } catch (IOException ex) {
-            ex.printStackTrace();
+
+            // Create IMUData with constants
+            imu_data[i] = new IMUData(kr, ka, oa, ts);
+            imu_data[i].key = key;
         }
 
         // Initialize state structures
         num_sensors = imu_data.length;
         prev_samp_time = new long[num_sensors];
-        // Initialize weighted average weights
-        waK = new double[num_sensors][NUM_AXES];
-        waK2 = new double[num_sensors][NUM_AXES];
-        for (int i = 0; i < num_sensors; i++) {
-            for (int n = 0; n < NUM_AXES; n++) {
-                waK[i][n] = 1.0/num_sensors;
-                waK2[i][n] = 1.0/num_sensors;
-            }
-        }
         calibrated = false;
         active_sensors = num_sensors;
+
+        // Built-in fusion algorithms, in the order of the FUSION_ constants
+        // The Kalman filter is the most expensive and starts disabled
+        addFusion(new AverageFusion());
+        addFusion(new BestFusion());
+        addFusion(new WeightedAverageFusion(false));
+        addFusion(new WeightedAverageFusion(true));
+        addFusion(new KalmanFusion());
+        setFusionEnabled(FUSION_KALMAN, false);
+
+        metrics = new Metrics("type=IMU,sensors=" + String.join("+", prefixes) + ",id=" + instances.getAndIncrement());
+        frames_processed = metrics.counter("FramesProcessed", "Frames fused");
+        samples_processed = metrics.counter("SamplesProcessed", "Samples of active sensors used");
+        negative_deltas = metrics.counter("NegativeTimeDeltas", "Samples older than the previous one of their sensor");
+        bad_ids = metrics.counter("BadSensorIds", "Samples with an id outside the configured sensors");
+        bias_updates = metrics.counter("BiasUpdates", "Sensor offsets replaced while stationary");
+        metrics.gauge("ActiveSensors", "Sensors being fused", () -> active_sensors);
+        metrics.gauge("Stationary", "1 while the rig is still", () -> stationary ? 1 : 0);
+        metrics.gauge("LagMicros", "Time from the latest frame being queued to its state being published",
+                      () -> lag_nanos/1000);
+        for (int i = 0; i < LATENCY_NAMES.length; i++) {
+            final LatencyHistogram h = latency[i];
+            String name = Character.toUpperCase(LATENCY_NAMES[i].charAt(0)) + LATENCY_NAMES[i].substring(1);
+            metrics.gauge(name + "P99Micros", "99th percentile " + LATENCY_NAMES[i] + " latency",
+                          () -> h.getValueAtPercentile(99.0)/1000);
+        }
+    }
+
+    // Load values from properties file
+    static Properties loadConf()
+    {
+        Properties conf = new Properties();
+        try {
+            conf.load(new FileInputStream("imu.conf"));
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        return conf;
     }
 
     // Calibrate the gyroscope offsets for calib_millis time
-    // Requires still sensor for the duration
+    // Requires still sensor for the duration. Stops early, leaving the IMU
+    // uncalibrated, if exit() is called meanwhile.
     public void calibrate(long calib_millis)
     {
         for (int i = 0; i < num_sensors; i++) {
@@ -327,57 +723,196 @@ public class IMU extends Thread
 
         // Store timestamps from sensor messages
         long curr_time = 0;
+        long first_time = 0;
 
         // Sum gyroscope samples
-        while (System.currentTimeMillis() - start < calib_millis) {
-            while (!data_stream.isEmpty()) {
-                curr_time = data_stream.getFirst().timestamp;
-                for (int i = 0; i < data_stream.getFirst().samples.size(); i++) {
-                    RAIGDriver.IMUSample imu_samp = data_stream.getFirst().samples.get(i);
-                    if (imu_samp.id >= 0 && imu_samp.id < num_sensors) {
-                        if (prev_samp_time[imu_samp.id] != 0) {
-                            imu_data[imu_samp.id].add_cal_samp(imu_samp, diffSecs(prev_samp_time[imu_samp.id], curr_time));
+        try {
+            long remaining;
+            while (!halt && (remaining = calib_millis - elapsedMillis(start, first_time, curr_time)) > 0) {
+                // Wait for the next frame, waking up now and then to check for halt
+                SampleBatch frame = data_stream.poll(Math.min(remaining, HALT_CHECK_MILLIS), TimeUnit.MILLISECONDS);
+                if (frame == null) {
+                    if (data_stream.isFinished()) {
+                        break;
+                    }
+                    continue;
+                }
+                curr_time = frame.timestamp;
+                if (first_time == 0) {
+                    first_time = curr_time;
+                }
+                for (int i = 0; i < frame.size; i++) {
+                    int id = frame.id[i];
+                    if (id >= 0 && id < num_sensors) {
+                        if (prev_samp_time[id] != 0) {
+                            imu_data[id].add_cal_samp(frame, i, diffSecs(prev_samp_time[id], curr_time));
                         }
-                        prev_samp_time[imu_samp.id] = curr_time;
+                        prev_samp_time[id] = curr_time;
                     }
                 }
-                data_stream.remove();
-            }
-            try {
-                Thread.sleep(10);
+                data_stream.release(frame);
             }
-            catch (Exception e) { return; }
+        }
+        catch (InterruptedException e) { return; }
+        if (halt) {
+            return;
         }
 
+        for (int i = 0; i < num_sensors; i++) {
+            imu_data[i].freezeCalibration();
+        }
+        configureFusions();
         calibrated = true;
+
+        BiasCache b = bias_cache;
+        if (b != null) {
+            for (int i = 0; i < num_sensors; i++) {
+                if (imu_data[i].getCalibrationSamples() > 0) {
+                    b.put(imu_data[i].key, imu_data[i].start_temp, imu_data[i].getCalibrationSamples(),
+                          imu_data[i].getOffset());
+                }
+            }
+            b.saveAsync();
+        }
         return;
     }
 
+    // Take the gyro offsets from the bias cache at the current temperature
+    // of each sensor instead of calibrating, waiting up to wait_millis for a
+    // frame to read the temperatures from
+    // Returns false, leaving the offsets alone, if there is no cache or some
+    // sensor has no fresh entry near its temperature, or exit() is called;
+    // calibrate() is needed then. While the rig is still (see setStationary), run() goes on
+    // refining the offsets and updating the cache.
+    public boolean warmStart(long wait_millis)
+    {
+        BiasCache b = bias_cache;
+        if (b == null) {
+            return false;
+        }
+
+        double temps[] = new double[num_sensors];
+        boolean seen[] = new boolean[num_sensors];
+        try {
+            // Wait for a frame, waking up now and then to check for halt
+            SampleBatch frame = null;
+            long deadline = System.currentTimeMillis() + wait_millis;
+            long remaining;
+            while (frame == null && !halt && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                frame = data_stream.poll(Math.min(remaining, HALT_CHECK_MILLIS), TimeUnit.MILLISECONDS);
+            }
+            if (frame == null) {
+                return false;
+            }
+            for (int i = 0; i < frame.size; i++) {
+                int id = frame.id[i];
+                if (id >= 0 && id < num_sensors) {
+                    temps[id] = frame.temp[i];
+                    seen[id] = true;
+                    prev_samp_time[id] = frame.timestamp;
+                }
+            }
+            data_stream.release(frame);
+        }
+        catch (InterruptedException e) { return false; }
+
+        BiasCache.Entry entries[] = new BiasCache.Entry[num_sensors];
+        for (int i = 0; i < num_sensors; i++) {
+            entries[i] = seen[i] ? b.lookup(imu_data[i].key, temps[i]) : null;
+            if (entries[i] == null) {
+                return false;
+            }
+        }
+        for (int i = 0; i < num_sensors; i++) {
+            imu_data[i].setOffset(entries[i].getOffset(), entries[i].getTemp());
+        }
+        configureFusions();
+        calibrated = true;
+        return true;
+    }
+
+    // Keep calibration results in cache and let warmStart() use them
+    // (null to stop)
+    public void setBiasCache(BiasCache cache)
+    {
+        bias_cache = cache;
+    }
+
+    public BiasCache getBiasCache()
+    {
+        return bias_cache;
+    }
+
+    // How long run() calibrates for when it cannot warm start
+    public void setCalibrationMillis(long millis)
+    {
+        calib_millis = millis;
+    }
+
     // Calculate PSD for psd_millis time
     // Requires still sensor for the duration
+    // The noise spectra are estimated over the same time and replace the
+    // current ones, unless startSpectra() already has spectra running.
+    // While run() is processing frames from a board, the frames are read
+    // through a subscription of their own instead of being taken from it,
+    // and run() applies the new noise levels to the fusion algorithms before
+    // its next frame.
     public void calculatePSD(long psd_millis)
     {
         for (int i = 0; i < num_sensors; i++) {
             imu_data[i].clearPSD();
         }
+        WelchPSD s_spectra[][] = null;
+        WelchPSD a_spectra[][] = null;
+        if (!spectra_enabled) {
+            s_spectra = newSpectra(num_sensors, WelchPSD.DEFAULT_SEGMENT);
+            a_spectra = newSpectra(1, WelchPSD.DEFAULT_SEGMENT);
+        }
+        SampleSource source = data_stream;
+        long prev_samp[] = prev_samp_time;
+        RAIGDriver.Subscription own_stream = null;
+        if (isAlive() && data_stream instanceof RAIGDriver.Subscription) {
+            own_stream = ((RAIGDriver.Subscription)data_stream).duplicate();
+            source = own_stream;
+            prev_samp = new long[num_sensors];
+        }
 
         long start = System.currentTimeMillis();
 
         // Store timestamps from sensor messages
         long curr_time = 0;
         long prev_time = 0;
+        long first_time = 0;
 
         // Send gyroscope samples to respective IMU object for processing
-        while (System.currentTimeMillis() - start < psd_millis) {
-            while (!data_stream.isEmpty()) {
-                curr_time = data_stream.getFirst().timestamp;
-                for (int i = 0; i < data_stream.getFirst().samples.size(); i++) {
-                    RAIGDriver.IMUSample imu_samp = data_stream.getFirst().samples.get(i);
-                    if (imu_samp.id >= 0 && imu_samp.id < num_sensors) {
-                        if (prev_samp_time[imu_samp.id] != 0) {
-                            imu_data[imu_samp.id].add_psd_samp(imu_samp, diffSecs(prev_samp_time[imu_samp.id], curr_time));
+        try {
+            long remaining;
+            while ((remaining = psd_millis - elapsedMillis(start, first_time, curr_time)) > 0) {
+                // Wait for the next frame
+                SampleBatch frame = source.poll(remaining, TimeUnit.MILLISECONDS);
+                if (frame == null) {
+                    if (source.isFinished()) {
+                        break;
+                    }
+                    continue;
+                }
+                curr_time = frame.timestamp;
+                if (first_time == 0) {
+                    first_time = curr_time;
+                }
+                for (int i = 0; i < frame.size; i++) {
+                    int id = frame.id[i];
+                    if (id >= 0 && id < num_sensors) {
+                        if (prev_samp[id] != 0) {
+                            double time_diff = diffSecs(prev_samp[id], curr_time);
+                            imu_data[id].add_psd_samp(frame, i, time_diff);
+                            if (s_spectra != null) {
+                                for (int n = 0; n < NUM_AXES; n++) {
+                                    s_spectra[id][n].add(imu_data[id].getNoise()[n], time_diff);
+                                }
+                            }
                         }
-                        prev_samp_time[imu_samp.id] = curr_time;
+                        prev_samp[id] = curr_time;
                     }
                 }
 
@@ -393,89 +928,567 @@ public class IMU extends Thread
                         }
 
                         aNoiseSq[i] += time_diff*Math.pow(aNoise,2.0);
+                        if (a_spectra != null) {
+                            a_spectra[0][i].add(aNoise, time_diff);
+                        }
                     }
                     a_psd_total_time += time_diff;
                 }
 
                 prev_time = curr_time;
-                data_stream.remove();
+                source.release(frame);
             }
-            try {
-                Thread.sleep(10);
+        }
+        catch (InterruptedException e) { return; }
+        finally {
+            if (own_stream != null) {
+                own_stream.cancel();
+            }
+            if (s_spectra != null) {
+                sensor_spectra = s_spectra;
+                average_spectra = a_spectra[0];
             }
-            catch (Exception e) { return; }
         }
 
+        // Only noise above what the still rig showed is motion
+        if (a_psd_total_time > 0.0) {
+            stillness.setRateNoise(getAveragePSDs());
+        }
+        if (isAlive()) {
+            reconfigure = true;
+        } else {
+            configureFusions();
+        }
         return;
     }
     // Process any IMU data incoming from the driver
     public void run()
     {
-        if (!calibrated) {
-            calibrate(500);
+        // halt is only ever set by exit() (or the end of the data), so an
+        // exit() while warm starting or calibrating is not lost
+        if (!calibrated && !warmStart(WARM_START_WAIT_MILLIS)) {
+            calibrate(calib_millis);
         }
-        halt = false;
-        
-        // Store timestamps from sensor messages
-        long curr_time = 0;
-
-        while (!halt) {
-            while (!data_stream.isEmpty() && !halt) {
-                curr_time = data_stream.getFirst().timestamp;
-                for (int i = 0; i < data_stream.getFirst().samples.size(); i++) {
-                    RAIGDriver.IMUSample imu_samp = data_stream.getFirst().samples.get(i);
-                    if (imu_samp.id >= 0 && imu_samp.id < active_sensors) {
-                        if (prev_samp_time[imu_samp.id] != 0) {
-                            imu_data[imu_samp.id].add_samp(imu_samp, diffSecs(prev_samp_time[imu_samp.id], curr_time));
-                            for (int n = 0; n < NUM_AXES; n++) {
-                                aHead[n] += imu_data[i].getDelta()[n]/active_sensors;
-                                waHead[n] += waK[i][n]*imu_data[i].getDelta()[n];
-                                waHead2[n] += waK2[i][n]*imu_data[i].getDelta()[n];
-                            }
+        if (halt) {
+            cancelSubscription();
+            return;
+        }
+        metrics.register();
 
-          
-                        }
-                        prev_samp_time[imu_samp.id] = curr_time;
+        try {
+            while (!halt) {
+                // Wait for the next frame, waking up now and then to check for halt
+                SampleBatch frame = data_stream.poll(HALT_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+                if (frame == null) {
+                    // A recording or simulation has run out
+                    if (data_stream.isFinished()) {
+                        halt = true;
                     }
-                    // Recalculate and normalize weights
-                    double delta_sum[] = new double[NUM_AXES];
-                    double delta_sum2[] = new double[NUM_AXES];
-                    for (int k = 0; k < active_sensors; k++) {
-                        for (int n = 0; n < NUM_AXES; n++) {
-                            delta_sum[n] += Math.abs(aHead[n] - imu_data[k].getHeading()[n]);
-                            delta_sum2[n] += Math.abs(waHead2[n] - imu_data[k].getHeading()[n]);
-                        }
+                    continue;
+                }
+                if (reconfigure) {
+                    reconfigure = false;
+                    configureFusions();
+                }
+                processFrame(frame);
+                data_stream.release(frame);
+            }
+        }
+        catch (InterruptedException e) { return; }
+        finally {
+            metrics.unregister();
+            cancelSubscription();
+            BiasCache b = bias_cache;
+            if (b != null) {
+                try {
+                    b.save();
+                } catch (IOException e) {
+                    System.err.println(e.toString());
+                }
+            }
+        }
+    }
+
+    // Update sensor and fused headings with one frame of samples
+    public void processFrame(SampleBatch frame)
+    {
+        long curr_time = frame.timestamp;
+        // Decide before the samples are used, so the offset tracking never
+        // averages the frame where motion starts
+        if (detect_stillness) {
+            detectStillness(frame);
+        }
+        boolean allan = allan_enabled;
+        boolean spectra = spectra_enabled;
+        int used = 0;
+        for (int i = 0; i < frame.size; i++) {
+            int id = frame.id[i];
+            if (id >= 0 && id < active_sensors) {
+                if (prev_samp_time[id] != 0) {
+                    double time_diff = diffSecs(prev_samp_time[id], curr_time);
+                    if (time_diff < 0.0) {
+                        negative_deltas.increment();
                     }
-                    for (int k = 0; k < active_sensors; k++) {
+                    imu_data[id].add_samp(frame, i, time_diff);
+                    if (allan) {
+                        double r[] = imu_data[id].getRate();
                         for (int n = 0; n < NUM_AXES; n++) {
-                            waK[k][n] = delta_sum[n]/(Math.abs(aHead[n] - imu_data[k].getHeading()[n]));
-                            waK2[k][n] = delta_sum2[n]/(Math.abs(waHead2[n] - imu_data[k].getHeading()[n]));
+                            sensor_allan[id][n].add(r[n], time_diff);
                         }
                     }
-                    double weight_sum[] = new double[NUM_AXES];
-                    double weight_sum2[] = new double[NUM_AXES];
-                    for (int k = 0; k < active_sensors; k++) {
+                    if (spectra) {
+                        double r[] = imu_data[id].getRate();
                         for (int n = 0; n < NUM_AXES; n++) {
-                            weight_sum[n] += waK[k][n];
-                            weight_sum2[n] += waK2[k][n];
+                            sensor_spectra[id][n].add(r[n], time_diff);
                         }
                     }
-                    for (int k = 0; k < active_sensors; k++) {
-                        for (int n = 0; n < NUM_AXES; n++) {
-                            waK[k][n] /= weight_sum[n];
-                            waK2[k][n] /= weight_sum2[n];
-                        }
-                        // Debug weights
-                        //System.out.println("Sensor" + k + ": " + waK2[k][2]);
+                }
+                prev_samp_time[id] = curr_time;
+                used++;
+            } else if (id < 0 || id >= num_sensors) {
+                bad_ids.increment();
+            }
+        }
+
+        double dt = (prev_frame_time != 0) ? Math.max(0.0, diffSecs(prev_frame_time, curr_time)) : 0.0;
+        prev_frame_time = curr_time;
+        boolean enabled[] = fusion_enabled;
+        for (int f = 0; f < fusions.length; f++) {
+            if (enabled[f]) {
+                fusions[f].update(frame, active_sensors, dt);
+            }
+        }
+
+        for (int n = 0; n < NUM_AXES; n++) {
+            double accel = 0.0;
+            for (int k = 0; k < active_sensors; k++) {
+                accel += imu_data[k].getAccel()[n]/active_sensors;
+            }
+            avg_accel[n] = accel;
+        }
+        int a = attitude_fusion;
+        if (enabled[a]) {
+            fusions[a].getRates(fused_rate);
+            attitude.update(fused_rate[0], fused_rate[1], fused_rate[2],
+                            avg_accel[0], avg_accel[1], avg_accel[2], dt);
+        }
+        if (spectra && dt > 0.0) {
+            for (int n = 0; n < NUM_AXES; n++) {
+                double rate = 0.0;
+                for (int k = 0; k < active_sensors; k++) {
+                    rate += imu_data[k].getRate()[n]/active_sensors;
+                }
+                average_spectra[n].add(rate, dt);
+            }
+        }
+        if (allan && dt > 0.0) {
+            for (int f = 0; f < fused_allan.length; f++) {
+                if (enabled[f]) {
+                    fusions[f].getRates(fused_rate);
+                    for (int n = 0; n < NUM_AXES; n++) {
+                        fused_allan[f][n].add(fused_rate[n], dt);
                     }
                 }
-                data_stream.remove();
             }
-            try {
-                Thread.sleep(10);
+        }
+        publishState(curr_time);
+        for (FrameListener l : listeners) {
+            l.frameProcessed(state);
+        }
+
+        if (frame.host_nanos != 0) {
+            long now = System.nanoTime();
+            latency[LATENCY_RECEIVE].record(frame.host_nanos - frame.rx_nanos);
+            latency[LATENCY_PROCESS].record(now - frame.host_nanos);
+            latency[LATENCY_TOTAL].record(now - frame.rx_nanos);
+            lag_nanos = now - frame.host_nanos;
+        }
+        frames_processed.increment();
+        samples_processed.add(used);
+    }
+
+    // Update the stillness detector with the average acceleration and rate
+    // of the active sensors in a frame
+    private void detectStillness(SampleBatch frame)
+    {
+        Arrays.fill(det_accel, 0.0);
+        Arrays.fill(det_rate, 0.0);
+        int n = 0;
+        for (int i = 0; i < frame.size; i++) {
+            int id = frame.id[i];
+            if (id >= 0 && id < active_sensors) {
+                Calibration c = imu_data[id].getCalibration();
+                double t = frame.temp[i];
+                for (int a = 0; a < NUM_AXES; a++) {
+                    det_accel[a] += frame.accel[3*i+a]*c.accel_scale[a] - c.accel_bias[a];
+                    det_rate[a] += c.rate(a, frame.rate[3*i+a], t);
+                }
+                n++;
             }
-            catch (Exception e) { return; }
         }
+        if (n == 0) {
+            return;
+        }
+        for (int a = 0; a < NUM_AXES; a++) {
+            det_accel[a] /= n;
+            det_rate[a] /= n;
+        }
+        double dt = (prev_frame_time != 0) ? diffSecs(prev_frame_time, frame.timestamp) : 0.0;
+        stationary = stillness.update(det_accel, det_rate, dt);
+    }
+
+    // Publish sensor and fused data of the latest frame for other threads
+    // Disabled fusion algorithms keep their last values
+    private void publishState(long timestamp)
+    {
+        boolean enabled[] = fusion_enabled;
+        state.beginWrite(timestamp);
+        for (int k = 0; k < num_sensors; k++) {
+            imu_data[k].getAttitude().getQuaternion(quat);
+            state.putSensor(k, imu_data[k].getRate(), imu_data[k].getHeading(), imu_data[k].getTemp(), quat);
+        }
+        for (int n = 0; n < NUM_AXES; n++) {
+            state.putAccel(n, avg_accel[n]);
+        }
+        attitude.getQuaternion(quat);
+        state.putAttitude(quat);
+        for (int f = 0; f < fusions.length; f++) {
+            if (enabled[f]) {
+                fusions[f].getHeadings(fused_head);
+                fusions[f].getRates(fused_rate);
+                state.putFusion(f, fused_head, fused_rate);
+            }
+        }
+        state.endWrite();
+    }
+
+    //
+    //
+    // Fusion algorithms
+    //
+    //
+
+    // Add a fusion algorithm, returns its index
+    // Must be called before frames are processed, as readers' snapshots
+    // are sized for the algorithms present when they were made
+    public int addFusion(FusionAlgorithm a)
+    {
+        int n = fusions.length;
+        FusionAlgorithm f[] = Arrays.copyOf(fusions, n + 1);
+        boolean e[] = Arrays.copyOf(fusion_enabled, n + 1);
+        f[n] = a;
+        e[n] = true;
+        a.configure(imu_data);
+        fusions = f;
+        fusion_enabled = e;
+        state = new IMUState(num_sensors, fusions.length);
+        return n;
+    }
+
+    public FusionAlgorithm getFusion(int index)
+    {
+        return fusions[index];
+    }
+
+    public int getNumFusions()
+    {
+        return fusions.length;
+    }
+
+    // Only enabled algorithms are run
+    // A disabled algorithm misses the frames in between, so its heading
+    // falls behind until it is set again (setHeadings)
+    public void setFusionEnabled(int index, boolean enabled)
+    {
+        boolean e[] = fusion_enabled.clone();
+        e[index] = enabled;
+        fusion_enabled = e;
+    }
+
+    public boolean isFusionEnabled(int index)
+    {
+        return fusion_enabled[index];
+    }
+
+    // Pick the fusion algorithm whose rates drive the 3D attitude
+    // The attitude stands still while that algorithm is disabled
+    public void setAttitudeFusion(int index)
+    {
+        if (index >= 0 && index < fusions.length) {
+            attitude_fusion = index;
+        }
+    }
+
+    public int getAttitudeFusion()
+    {
+        return attitude_fusion;
+    }
+
+    // The fused attitude estimator, to set its gains before running
+    public Attitude getAttitudeFilter()
+    {
+        return attitude;
+    }
+
+    //
+    //
+    // Temperature compensation
+    //
+    //
+
+    // Fit each sensor's bias against temperature while the rig is still
+    // (see setStationary), with a polynomial of the given order. The fits
+    // replace the bias and temperature terms of the live conversion every
+    // TEMP_APPLY_SECONDS of still data and whenever the rig starts moving.
+    // The fit starts from the current offsets, and starts again whenever
+    // they are replaced (calibrate(), warmStart(), setOffset), so it can be
+    // started before or after calibrating. While it runs, the offsets are
+    // not tracked separately (see setStillnessDetection).
+    public void startTempFit(int order)
+    {
+        startTempFit(order, DEFAULT_TEMP_SCALE);
+    }
+
+    // temp_scale is a typical temperature change in raw counts
+    public void startTempFit(int order, double temp_scale)
+    {
+        for (int i = 0; i < num_sensors; i++) {
+            imu_data[i].startTempFit(order, temp_scale);
+        }
+    }
+
+    public void stopTempFit()
+    {
+        for (int i = 0; i < num_sensors; i++) {
+            imu_data[i].stopTempFit();
+        }
+    }
+
+    // Tell the IMU whether the rig is known to be still
+    // Overridden on every frame while stillness detection is enabled
+    public void setStationary(boolean still)
+    {
+        stationary = still;
+    }
+
+    public boolean isStationary()
+    {
+        return stationary;
+    }
+
+    //
+    //
+    // Stillness detection
+    //
+    //
+
+    // Decide from the frames whether the rig is still (see
+    // StillnessDetector), instead of being told with setStationary()
+    // While it is, the gyro offsets follow the bias drift (and the
+    // temperature fits are fed) without stopping to recalibrate.
+    public void setStillnessDetection(boolean enabled)
+    {
+        if (enabled && !detect_stillness) {
+            stillness.reset();
+        }
+        detect_stillness = enabled;
+        if (!enabled) {
+            stationary = false;
+        }
+    }
+
+    public boolean isStillnessDetection()
+    {
+        return detect_stillness;
+    }
+
+    public StillnessDetector getStillnessDetector()
+    {
+        return stillness;
+    }
+
+    //
+    //
+    // Allan variance
+    //
+    //
+
+    // Start a new Allan variance analysis of every sensor and fusion
+    // algorithm (the rig should be kept still). It runs on the processing
+    // thread until stopAllan(), in memory that does not grow with time.
+    public void startAllan()
+    {
+        AllanVariance s[][] = new AllanVariance[num_sensors][NUM_AXES];
+        AllanVariance f[][] = new AllanVariance[fusions.length][NUM_AXES];
+        for (int n = 0; n < NUM_AXES; n++) {
+            for (int i = 0; i < num_sensors; i++) {
+                s[i][n] = new AllanVariance();
+            }
+            for (int i = 0; i < fusions.length; i++) {
+                f[i][n] = new AllanVariance();
+            }
+        }
+        sensor_allan = s;
+        fused_allan = f;
+        allan_enabled = true;
+    }
+
+    // Stop adding samples, the results stay available
+    public void stopAllan()
+    {
+        allan_enabled = false;
+    }
+
+    // Allan variance of one axis of a sensor, null if never started
+    public AllanVariance getSensorAllan(int sensor, int axis)
+    {
+        return (sensor_allan == null) ? null : sensor_allan[sensor][axis];
+    }
+
+    // Allan variance of one axis of a fusion algorithm's rate (see getFusion)
+    public AllanVariance getFusedAllan(int fusion, int axis)
+    {
+        return (fused_allan == null) ? null : fused_allan[fusion][axis];
+    }
+
+    //
+    //
+    // Spectra
+    //
+    //
+
+    // Start new Welch spectra of every sensor and of the sensor average,
+    // with segments of the given length (a power of two). They are updated
+    // on the processing thread until stopSpectra(), and can be read at any
+    // time, e.g. to find vibration peaks while running.
+    public void startSpectra(int segment)
+    {
+        sensor_spectra = newSpectra(num_sensors, segment);
+        average_spectra = newSpectra(1, segment)[0];
+        spectra_enabled = true;
+    }
+
+    // Spectra of every axis of count signals
+    private static WelchPSD[][] newSpectra(int count, int segment)
+    {
+        WelchPSD s[][] = new WelchPSD[count][NUM_AXES];
+        for (int i = 0; i < count; i++) {
+            for (int n = 0; n < NUM_AXES; n++) {
+                s[i][n] = new WelchPSD(segment);
+            }
+        }
+        return s;
+    }
+
+    // Stop adding samples, the spectra stay available
+    public void stopSpectra()
+    {
+        spectra_enabled = false;
+    }
+
+    // Spectrum of one axis of a sensor, null if never started
+    public WelchPSD getSensorSpectrum(int sensor, int axis)
+    {
+        return (sensor_spectra == null) ? null : sensor_spectra[sensor][axis];
+    }
+
+    // Spectrum of one axis of the average of the active sensors
+    public WelchPSD getAverageSpectrum(int axis)
+    {
+        return (average_spectra == null) ? null : average_spectra[axis];
+    }
+
+    // Let the algorithms pick up new sensor constants
+    private void configureFusions()
+    {
+        for (int f = 0; f < fusions.length; f++) {
+            fusions[f].configure(imu_data);
+        }
+    }
+
+    //
+    //
+    // Latency
+    //
+    //
+
+    // Histogram of one stage (LATENCY_ constants) of the frames processed
+    // so far, from the serial port event to the published state
+    public LatencyHistogram getLatency(int stage)
+    {
+        return latency[stage];
+    }
+
+    // One line per stage with the frame count and p50/p99/p99.9/max (usec)
+    public String getLatencyReport()
+    {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < latency.length; i++) {
+            s.append(String.format("%-8s %s%n", LATENCY_NAMES[i], latency[i].summary()));
+        }
+        return s.toString();
+    }
+
+    public void clearLatency()
+    {
+        for (LatencyHistogram h : latency) {
+            h.clear();
+        }
+    }
+
+    // Frame and sample counters and lag gauges (also published over JMX
+    // while run() is running)
+    public Metrics getMetrics()
+    {
+        return metrics;
+    }
+
+    // Make a snapshot buffer for readState()
+    public IMUState.Snapshot newSnapshot()
+    {
+        return state.newSnapshot();
+    }
+
+    // Copy the data of the latest processed frame into s, without locking or
+    // allocating. Safe to call from any thread at any rate.
+    public void readState(IMUState.Snapshot s)
+    {
+        state.read(s);
+    }
+
+    // Have l told about every processed frame, on the IMU thread
+    public void addFrameListener(FrameListener l)
+    {
+        synchronized (listener_lock) {
+            FrameListener list[] = Arrays.copyOf(listeners, listeners.length + 1);
+            list[list.length - 1] = l;
+            listeners = list;
+        }
+    }
+
+    public void removeFrameListener(FrameListener l)
+    {
+        synchronized (listener_lock) {
+            List<FrameListener> list = new ArrayList<FrameListener>(Arrays.asList(listeners));
+            if (list.remove(l)) {
+                listeners = list.toArray(new FrameListener[list.size()]);
+            }
+        }
+    }
+
+    // Latest data in a new snapshot, used by the getters below
+    private IMUState.Snapshot snapshot()
+    {
+        IMUState.Snapshot s = state.newSnapshot();
+        state.read(s);
+        return s;
+    }
+
+    // Choose how the processing thread waits for frames
+    // BUSY_SPIN gives the lowest latency but keeps a core busy
+    public void setWaitStrategy(SampleRing.WaitStrategy w)
+    {
+        data_stream.setWaitStrategy(w);
     }
 
     // Pick how many sensors contribute to the fused data
@@ -506,6 +1519,8 @@ public class IMU extends Thread
     //
     // Getters for data from individual sensors
     // Methods return arrays of data
+    // Headings, rates and temperatures are copies of the latest published
+    // frame, readState() gets them all at once without allocating
     //
     //
 
@@ -532,31 +1547,25 @@ public class IMU extends Thread
     // Return an array of XYZ headings for all sensors
     public double[][] getSensorHeadings()
     {
-        double[][] headings = new double[num_sensors][NUM_AXES];
-        for (int i = 0; i < num_sensors; i++) {
-            headings[i] = imu_data[i].getHeading();
-        }
-        return headings;
+        return snapshot().headings;
     }
     
     // Return an array of XYZ rates for all sensors
     public double[][] getSensorRates()
     {
-        double[][] headings = new double[num_sensors][NUM_AXES];
-        for (int i = 0; i < num_sensors; i++) {
-            headings[i] = imu_data[i].getRate();
-        }
-        return headings;
-    } 
+        return snapshot().rates;
+    }
 
     // Return Temperature of all sensors
     public double[] getTemps()
     {
-        double[] temps = new double[num_sensors];
-        for (int i = 0; i < num_sensors; i++) {
-            temps[i] = imu_data[i].getTemp();
-        }
-        return temps;
+        return snapshot().temps;
+    }
+
+    // Return the gyro-only attitude quaternion (w, x, y, z) of all sensors
+    public double[][] getSensorAttitudes()
+    {
+        return snapshot().attitudes;
     }
 
     //
@@ -579,85 +1588,82 @@ public class IMU extends Thread
     // Return an array of average XYZ headings
     public double[] getAverageHeadings()
     {
-        double[] headings = new double[NUM_AXES];
-        for (int i = 0; i < NUM_AXES; i++) {
-            headings[i] = aHead[i];
-        }
-        return headings;
+        return snapshot().fused_headings[FUSION_AVERAGE];
     }
     
     // Return an array of averaged XYZ rates
     public double[] getAverageRates()
     {
-        double[] rates = new double[NUM_AXES];
-        for (int i = 0; i < active_sensors; i++) {
-            for (int n = 0; n < NUM_AXES; n++) {
-                rates[n] += imu_data[i].getRate()[n]/active_sensors;
-            }
-        }
-        return rates;
+        return snapshot().fused_rates[FUSION_AVERAGE];
     }
 
     // Return an array of averaged XYZ accelerations
     public double[] getAverageAccels()
     {
-        double[] accels = new double[NUM_AXES];
-        for (int i = 0; i < active_sensors; i++) {
-            for (int n = 0; n < NUM_AXES; n++) {
-                accels[n] += imu_data[i].getAccel()[n]/active_sensors;
-            }
-        }
-        return accels;
+        return snapshot().average_accels;
     }
 
     // Use to ground truth/reset calculated headings
+    // Takes effect from the next published frame
     public void clearHeadings()
     {
-        aHead = new double[NUM_AXES];
-        waHead = new double[NUM_AXES];
+        setHeadings(new double[NUM_AXES]);
     }
+    // Sets the heading of every fusion algorithm, the array is copied
     public void setHeadings(double[] a)
     {
-        aHead = a;
-        waHead = a;
+        for (int f = 0; f < fusions.length; f++) {
+            fusions[f].setHeadings(a);
+        }
     }
     
     // Return the best XYZ headings of any single sensor (rel. to average)
     public double[] getBestHeadings()
     {
-        double[] headings = new double[NUM_AXES];
-        for (int i = 0; i < NUM_AXES; i++) {
-            double lowestDiff = Math.abs(getAverageHeadings()[i] - imu_data[0].getHeading()[i]);
-            headings[i] = imu_data[0].getHeading()[i];
-            for (int j = 0; j < active_sensors; j++) {
-                if (Math.abs(getAverageHeadings()[i] - imu_data[j].getHeading()[i]) < lowestDiff) {
-                    lowestDiff = Math.abs(getAverageHeadings()[i] - imu_data[j].getHeading()[i]);                
-                    headings[i] = imu_data[j].getHeading()[i];
-                }
-            }
-        }
-        return headings;
+        return snapshot().fused_headings[FUSION_BEST];
     }
     
     // Return an array of weighted average XYZ headings
     public double[] getWAverageHeadings()
     {
-        double[] headings = new double[NUM_AXES];
-        for (int i = 0; i < NUM_AXES; i++) {
-            headings[i] = waHead[i];
-        }
-        return headings;
+        return snapshot().fused_headings[FUSION_WA];
     }
 
     // Return an array of weighted average XYZ headings
     // Iteratively favors previous weights
     public double[] getWAverage2Headings()
     {
-        double[] headings = new double[NUM_AXES];
-        for (int i = 0; i < NUM_AXES; i++) {
-            headings[i] = waHead2[i];
+        return snapshot().fused_headings[FUSION_WA2];
+    }
+
+    // Return the XYZ headings of any fusion algorithm (see getFusion)
+    public double[] getFusedHeadings(int index)
+    {
+        return snapshot().fused_headings[index];
+    }
+
+    // Return the fused attitude quaternion (w, x, y, z)
+    public double[] getAttitude()
+    {
+        return snapshot().attitude;
+    }
+
+    // Return the fused attitude as roll, pitch and yaw in radians
+    public double[] getEulerAngles()
+    {
+        double e[] = new double[NUM_AXES];
+        Attitude.toEuler(getAttitude(), e);
+        return e;
+    }
+
+    // Level the fused and per-sensor attitudes
+    // Takes effect from the next published frame
+    public void clearAttitude()
+    {
+        attitude.reset();
+        for (int i = 0; i < num_sensors; i++) {
+            imu_data[i].clearAttitude();
         }
-        return headings;
     }
     //
     //
@@ -715,10 +1721,14 @@ public class IMU extends Thread
     //
 
     // Signal threads to stop running
+    // An IMU that was never started gives back its subscription here,
+    // a running one when run() returns
     public void exit() 
     {
         halt = true;
-
+        if (getState() == Thread.State.NEW) {
+            cancelSubscription();
+        }
     }
 
     // Check if running
@@ -727,12 +1737,36 @@ public class IMU extends Thread
         return !halt;
     }
 
+    // Stop the board's bus from keeping frames for this IMU, like
+    // calculatePSD does with its own duplicate
+    private void cancelSubscription()
+    {
+        RAIGDriver.Subscription s = own_subscription;
+        own_subscription = null;
+        if (s != null) {
+            s.cancel();
+        }
+    }
+
     //
     //
     // IMU Helper Functions
     //
     //
 
+    // Time spent so far in calibrate() or calculatePSD()
+    // The larger of the host time since start and the stream time since the
+    // first frame, so a recording played faster than real time covers the
+    // same stretch of data as the live board would
+    private long elapsedMillis(long start, long first_time, long curr_time)
+    {
+        long elapsed = System.currentTimeMillis() - start;
+        if (first_time != 0 && curr_time - first_time > elapsed) {
+            elapsed = curr_time - first_time;
+        }
+        return elapsed;
+    }
+
     // Takes 2 'long' times in milliseconds
     // Arguments should be in forware chronological order
     // Returns their difference in seconds
@@ -0,0 +1,205 @@
+import java.util.*;
+import java.lang.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Latest sensor and fused data of an IMU, shared with reader threads
+// The fusion thread publishes once per frame and any number of threads can
+// copy the latest data into a Snapshot at any time. Access is guarded by a
+// sequence lock: the writer makes the sequence odd while it writes and even
+// when done, and a reader retries if the sequence was odd or changed while
+// it copied. Readers never block the writer and nothing is allocated.
+public class IMUState
+{
+    static final int NUM_AXES = IMU.NUM_AXES;
+
+    // Layout of the data array: timestamp, average acceleration, fused
+    // attitude quaternion, then rate, heading, temperature and attitude of
+    // each sensor, then heading and rate of each fusion algorithm
+    static final int ACCEL_BASE = 1;
+    static final int ATTITUDE_BASE = ACCEL_BASE + NUM_AXES;
+    static final int SENSOR_BASE = ATTITUDE_BASE + 4;
+    static final int SENSOR_STRIDE = 2*NUM_AXES + 1 + 4;
+    static final int FUSION_STRIDE = 2*NUM_AXES;
+
+    // Copy of the state, owned by one reader thread
+    public static class Snapshot
+    {
+        // Timestamp of the frame the data came from (ms)
+        public long timestamp;
+        // Number of times the state has been published
+        public long frames;
+
+        // Per sensor data
+        public final double rates[][];
+        public final double headings[][];
+        public final double temps[];
+        // Attitude quaternion (w, x, y, z) from each sensor's gyros alone
+        public final double attitudes[][];
+
+        // Average acceleration of the active sensors
+        public final double average_accels[] = new double[NUM_AXES];
+        // Fused attitude quaternion (w, x, y, z), see IMU.getAttitude()
+        public final double attitude[] = new double[4];
+
+        // Heading and rate from each fusion algorithm, indexed like
+        // IMU.getFusion() (e.g. fused_headings[IMU.FUSION_AVERAGE])
+        public final double fused_headings[][];
+        public final double fused_rates[][];
+
+        public Snapshot(int num_sensors, int num_fusions)
+        {
+            rates = new double[num_sensors][NUM_AXES];
+            headings = new double[num_sensors][NUM_AXES];
+            temps = new double[num_sensors];
+            attitudes = new double[num_sensors][4];
+            fused_headings = new double[num_fusions][NUM_AXES];
+            fused_rates = new double[num_fusions][NUM_AXES];
+        }
+    }
+
+    private final int num_sensors;
+    private final int num_fusions;
+    private final int fused_base;
+    // Doubles are stored as their raw bits
+    private final AtomicLongArray data;
+    // Odd while the writer is publishing
+    private final AtomicLong seq = new AtomicLong();
+
+    public IMUState(int num_sensors, int num_fusions)
+    {
+        this.num_sensors = num_sensors;
+        this.num_fusions = num_fusions;
+        fused_base = SENSOR_BASE + num_sensors*SENSOR_STRIDE;
+        data = new AtomicLongArray(fused_base + num_fusions*FUSION_STRIDE);
+    }
+
+    public int getNumSensors()
+    {
+        return num_sensors;
+    }
+
+    public int getNumFusions()
+    {
+        return num_fusions;
+    }
+
+    public Snapshot newSnapshot()
+    {
+        return new Snapshot(num_sensors, num_fusions);
+    }
+
+    //
+    //
+    // Writer side (a single thread)
+    //
+    //
+
+    // Start publishing the data of the frame at timestamp
+    public void beginWrite(long timestamp)
+    {
+        seq.set(seq.get() + 1);
+        data.lazySet(0, timestamp);
+    }
+
+    public void putSensor(int sensor, double rate[], double heading[], double temp, double q[])
+    {
+        int p = SENSOR_BASE + sensor*SENSOR_STRIDE;
+        for (int n = 0; n < NUM_AXES; n++) {
+            put(p + n, rate[n]);
+            put(p + NUM_AXES + n, heading[n]);
+        }
+        put(p + 2*NUM_AXES, temp);
+        for (int n = 0; n < 4; n++) {
+            put(p + 2*NUM_AXES + 1 + n, q[n]);
+        }
+    }
+
+    public void putAccel(int axis, double v)
+    {
+        put(ACCEL_BASE + axis, v);
+    }
+
+    public void putAttitude(double q[])
+    {
+        for (int n = 0; n < 4; n++) {
+            put(ATTITUDE_BASE + n, q[n]);
+        }
+    }
+
+    public void putFusion(int fusion, double heading[], double rate[])
+    {
+        int p = fused_base + fusion*FUSION_STRIDE;
+        for (int n = 0; n < NUM_AXES; n++) {
+            put(p + n, heading[n]);
+            put(p + NUM_AXES + n, rate[n]);
+        }
+    }
+
+    // Make the new data visible to readers
+    public void endWrite()
+    {
+        seq.set(seq.get() + 1);
+    }
+
+    private void put(int i, double v)
+    {
+        data.lazySet(i, Double.doubleToRawLongBits(v));
+    }
+
+    //
+    //
+    // Reader side (any thread)
+    //
+    //
+
+    // Copy the latest published data into s
+    // s must come from newSnapshot()
+    public void read(Snapshot s)
+    {
+        while (true) {
+            long start = seq.get();
+            if ((start & 1) != 0) {
+                // Writer is part way through, it will be done shortly
+                Thread.yield();
+                continue;
+            }
+
+            s.timestamp = data.get(0);
+            for (int n = 0; n < NUM_AXES; n++) {
+                s.average_accels[n] = get(ACCEL_BASE + n);
+            }
+            for (int n = 0; n < 4; n++) {
+                s.attitude[n] = get(ATTITUDE_BASE + n);
+            }
+            for (int k = 0; k < num_sensors; k++) {
+                int p = SENSOR_BASE + k*SENSOR_STRIDE;
+                for (int n = 0; n < NUM_AXES; n++) {
+                    s.rates[k][n] = get(p + n);
+                    s.headings[k][n] = get(p + NUM_AXES + n);
+                }
+                s.temps[k] = get(p + 2*NUM_AXES);
+                for (int n = 0; n < 4; n++) {
+                    s.attitudes[k][n] = get(p + 2*NUM_AXES + 1 + n);
+                }
+            }
+            for (int f = 0; f < num_fusions; f++) {
+                int p = fused_base + f*FUSION_STRIDE;
+                for (int n = 0; n < NUM_AXES; n++) {
+                    s.fused_headings[f][n] = get(p + n);
+                    s.fused_rates[f][n] = get(p + NUM_AXES + n);
+                }
+            }
+
+            if (seq.get() == start) {
+                s.frames = start/2;
+                return;
+            }
+        }
+    }
+
+    private double get(int i)
+    {
+        return Double.longBitsToDouble(data.get(i));
+    }
+}
@@ -0,0 +1,187 @@
+import java.util.*;
+import java.lang.*;
+
+// Kalman filter over all gyros of one axis
+// The state of each axis is [w, b_0 .. b_N-1]: the true rate w and the bias
+// left on each sensor after calibration. Sensor i measures
+//   z_i = w + b_i + noise
+// where the noise variance is the sensor's PSD estimate (IMUData.getPSD(),
+// the mean squared noise of a sample). Both w and the biases are random
+// walks. The biases start out with the uncertainty left by calibration,
+// the sample variance divided by the number of samples averaged, so sensors
+// with quieter calibrations are trusted more. Every sample is folded in as
+// a scalar update, so there is no matrix inversion, and all matrices are
+// allocated when the filter is configured. The heading is the integral of
+// the estimated rate.
+public class KalmanFusion implements FusionAlgorithm
+{
+    static final int NUM_AXES = IMU.NUM_AXES;
+    // Measurement noise variance used for sensors without a PSD estimate ((rad/sec)^2)
+    static final double DEFAULT_NOISE = 1e-6;
+
+    // Rate random walk of the rig, how fast w can change ((rad/sec)^2/sec)
+    private double rate_process_noise = 1.0;
+    // Bias random walk of each sensor ((rad/sec)^2/sec)
+    private double bias_process_noise = 1e-10;
+    // Starting variance of the rate, and of the biases of uncalibrated sensors ((rad/sec)^2)
+    private double initial_rate_var = 1.0;
+    private double initial_bias_var = 1e-6;
+
+    private IMU.IMUData sensors[];
+    // Number of states, 1 + number of sensors
+    private int m;
+    // State and row-major covariance of each axis
+    private double x[][];
+    private double P[][];
+    // Measurement noise variance of each sensor and axis
+    private double R[][];
+    // Calibration time of each sensor (sec)
+    private double calib_time[];
+    // Set when the covariance must be reset on the next frame
+    private boolean pending_reset;
+    // Scratch gain and covariance row
+    private double K[];
+    private double row[];
+
+    private double head[] = new double[NUM_AXES];
+
+    public String getName()
+    {
+        return "kalman";
+    }
+
+    public void configure(IMU.IMUData s[])
+    {
+        if (sensors == null || sensors.length != s.length) {
+            sensors = s;
+            m = s.length + 1;
+            x = new double[NUM_AXES][m];
+            P = new double[NUM_AXES][m*m];
+            R = new double[s.length][NUM_AXES];
+            calib_time = new double[s.length];
+            K = new double[m];
+            row = new double[m];
+        }
+        sensors = s;
+        for (int i = 0; i < s.length; i++) {
+            double psd[] = s[i].getPSD();
+            for (int n = 0; n < NUM_AXES; n++) {
+                R[i][n] = (psd[n] > 0.0) ? psd[n] : DEFAULT_NOISE;
+            }
+            calib_time[i] = s[i].getCalibrationTime();
+        }
+        // New offsets or noise, start the estimates over
+        reset();
+    }
+
+    // Forget the rate and bias estimates (the heading is kept)
+    // The covariance is set up on the next frame, once the sample period is known
+    public void reset()
+    {
+        pending_reset = true;
+    }
+
+    private void initCovariance(double dt)
+    {
+        for (int n = 0; n < NUM_AXES; n++) {
+            Arrays.fill(x[n], 0.0);
+            Arrays.fill(P[n], 0.0);
+            P[n][0] = initial_rate_var;
+            for (int j = 1; j < m; j++) {
+                double var = initial_bias_var;
+                if (calib_time[j - 1] > 0.0) {
+                    var = R[j - 1][n]*dt/calib_time[j - 1];
+                }
+                P[n][j*m + j] = var;
+            }
+        }
+        pending_reset = false;
+    }
+
+    public void update(SampleBatch frame, int active_sensors, double dt)
+    {
+        if (dt <= 0.0) {
+            return;
+        }
+        if (pending_reset) {
+            initCovariance(dt);
+        }
+        for (int n = 0; n < NUM_AXES; n++) {
+            double p[] = P[n];
+            double xn[] = x[n];
+
+            // Predict: the state stays put, uncertainty grows
+            p[0] += rate_process_noise*dt;
+            for (int j = 1; j < m; j++) {
+                p[j*m + j] += bias_process_noise*dt;
+            }
+
+            // Update with each sample, H = [1, 0 .. 1 (at 1+id) .. 0]
+            for (int i = 0; i < frame.size; i++) {
+                int id = frame.id[i];
+                if (id < 0 || id >= active_sensors) {
+                    continue;
+                }
+                int b = 1 + id;
+                double z = sensors[id].getRate()[n];
+                double innovation = z - xn[0] - xn[b];
+                double S = p[0] + p[b] + p[b*m] + p[b*m + b] + R[id][n];
+                // K = P H' / S, and H P is the sum of rows 0 and b
+                for (int j = 0; j < m; j++) {
+                    row[j] = p[j] + p[b*m + j];
+                    K[j] = (p[j*m] + p[j*m + b])/S;
+                }
+                for (int j = 0; j < m; j++) {
+                    xn[j] += K[j]*innovation;
+                    double kj = K[j];
+                    int r = j*m;
+                    for (int k = 0; k < m; k++) {
+                        p[r + k] -= kj*row[k];
+                    }
+                }
+            }
+
+            head[n] += xn[0]*dt;
+        }
+    }
+
+    public void getHeadings(double out[])
+    {
+        System.arraycopy(head, 0, out, 0, NUM_AXES);
+    }
+
+    public void getRates(double out[])
+    {
+        for (int n = 0; n < NUM_AXES; n++) {
+            out[n] = x[n][0];
+        }
+    }
+
+    public void setHeadings(double h[])
+    {
+        System.arraycopy(h, 0, head, 0, NUM_AXES);
+    }
+
+    // Estimated remaining bias of a sensor (rad/sec)
+    public double getBias(int sensor, int axis)
+    {
+        return x[axis][1 + sensor];
+    }
+
+    // Noise model, takes effect from the next frame
+    public void setRateProcessNoise(double q)
+    {
+        rate_process_noise = q;
+    }
+
+    public void setBiasProcessNoise(double q)
+    {
+        bias_process_noise = q;
+    }
+
+    public void setInitialVariance(double rate_var, double bias_var)
+    {
+        initial_rate_var = rate_var;
+        initial_bias_var = bias_var;
+    }
+}
@@ -0,0 +1,112 @@
+import java.util.*;
+import java.lang.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Histogram of latencies in nanoseconds, in fixed memory
+// Like an HDR histogram, values below 2^SUB_BITS get a bucket each and every
+// power of two above that is split into 2^SUB_BITS buckets, so values are
+// kept to within 1/2^SUB_BITS (about 3%) from nanoseconds up to MAX_VALUE.
+// Larger values are counted in the top bucket. Recording is an atomic
+// increment, so any number of threads can record and read at the same time
+// without locks.
+public class LatencyHistogram
+{
+    static final int SUB_BITS = 5;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // Largest value kept apart (ns), about 18 minutes
+    static final long MAX_VALUE = (1L << 40) - 1;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram()
+    {
+        counts = new AtomicLongArray(bucket(MAX_VALUE) + 1);
+    }
+
+    // Add one latency (ns), negative values count as 0
+    public void record(long nanos)
+    {
+        long v = Math.min(Math.max(nanos, 0), MAX_VALUE);
+        counts.getAndIncrement(bucket(v));
+        long m = max.get();
+        while (v > m && !max.compareAndSet(m, v)) {
+            m = max.get();
+        }
+    }
+
+    // Bucket of a value from 0 to MAX_VALUE
+    static int bucket(long v)
+    {
+        if (v < SUB_BUCKETS) {
+            return (int)v;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+        return (shift + 1)*SUB_BUCKETS + (int)(v >>> shift) - SUB_BUCKETS;
+    }
+
+    // Largest value that falls in a bucket
+    static long highest(int bucket)
+    {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket/SUB_BUCKETS - 1;
+        long low = (long)(bucket%SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return low + (1L << shift) - 1;
+    }
+
+    public long getCount()
+    {
+        long n = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            n += counts.get(i);
+        }
+        return n;
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    // Smallest value (ns) that at least percentile percent of the values are
+    // at or below, to within the bucket size, 0 if nothing was recorded
+    public long getValueAtPercentile(double percentile)
+    {
+        long total = getCount();
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long)Math.ceil(percentile/100.0*total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highest(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    // Forget all values, those recorded meanwhile may or may not be kept
+    public void clear()
+    {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        max.set(0);
+    }
+
+    // Count and p50/p99/p99.9/max in microseconds
+    public String summary()
+    {
+        return String.format("%10d  p50 %9.1f  p99 %9.1f  p99.9 %9.1f  max %9.1f",
+                             getCount(),
+                             getValueAtPercentile(50.0)/1e3,
+                             getValueAtPercentile(99.0)/1e3,
+                             getValueAtPercentile(99.9)/1e3,
+                             getMax()/1e3);
+    }
+}
@@ -1,31 +1,61 @@
 import java.io.*;
 import java.util.*;
 import java.lang.*;
+import java.util.concurrent.TimeUnit;
 
+// Measures the latency of the RAIG board
+// By default an IMU processes the LSM330 frames, and every REPORT_MILLIS the
+// latency histograms of its stages are printed: receive (serial port event
+// to frame queued), process (queued to fused state published) and total.
+// Usage: LatencyTest [-frames]
+//   -frames  print the board and host time between every pair of frames instead
 public class LatencyTest
 {
+    static final long REPORT_MILLIS = 10000;
 
     public static void main(String args[]) throws IOException
     {
-        RAIGDriver driver = new RAIGDriver();
+        RAIGDriver driver = RAIGDriver.getSingleton();
+        if (args.length > 0 && args[0].equals("-frames")) {
+            printFrames(driver);
+            return;
+        }
+
+        IMU imu = new IMU(IMU.IMUType.LSM330);
+        imu.start();
+        while (imu.isRunning()) {
+            try {
+                Thread.sleep(REPORT_MILLIS);
+            }
+            catch (InterruptedException e) { return; }
+            System.out.print(imu.getLatencyReport());
+            System.out.println();
+        }
+    }
+
+    static void printFrames(RAIGDriver driver)
+    {
+        RAIGDriver.Subscription lsm_data = driver.subscribe(IMU.IMUType.LSM330);
         long arduLastTime = 0;
         long hostLastTime = 0;
         while (true) {
-            if (!driver.lsm_data.isEmpty()) {
-                long arduTime = driver.lsm_data.getFirst().timestamp;
+            // Wait for the next frame
+            SampleBatch frame;
+            try {
+                frame = lsm_data.poll(1, TimeUnit.SECONDS);
+            }
+            catch (Exception e) { return; }
+            if (frame != null) {
+                long arduTime = frame.timestamp;
                 long hostTime = System.currentTimeMillis();
                 System.out.println("Message Send Latency: " + (arduTime - arduLastTime) + "\t" +
                                    "Message Received Latency: " + (hostTime - hostLastTime) + "\t" +
-                                   "Queue Size: " + driver.lsm_data.size());
+                                   "Queue Size: " + (lsm_data.size() + 1));
                 arduLastTime = arduTime;
                 hostLastTime = hostTime;
-                driver.lsm_data.remove();
+                lsm_data.release(frame);
 
             }
-            try {
-                Thread.sleep(1);
-            } 
-            catch (Exception e) { return; }
         }
     }
 }
@@ -3,6 +3,8 @@ import java.util.*;
 import java.lang.*;
 import java.awt.*;
 import java.awt.image.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import javax.swing.*;
 
 import april.jcam.*;
@@ -12,7 +14,11 @@ import april.vis.*;
 
 public class Main
 {
-    static IMU imu_mpu = new IMU(IMU.IMUType.MPU6050);
+    // Set once the board is sending frames, the GUI is built meanwhile
+    volatile static IMU imu_mpu = null;
+    static int num_sensors;
+    // Offsets of earlier runs, so Start needs no calibration most of the time
+    static BiasCache bias_cache = new BiasCache(BiasCache.DEFAULT_FILE);
     
     static ParameterGUI pg_controls = new ParameterGUI();
     static ParameterGUI pg_gyros = new ParameterGUI();
@@ -32,10 +38,10 @@ public class Main
         // Add elements
         pg_controls.addButtons("reset", "Reset", "start", "Start", "psd", "PSD");
         pg_controls.addInt("time","Seconds", 0);
-        for (int i = 0; i < imu_mpu.getNumSensors(); i++) {
+        for (int i = 0; i < num_sensors; i++) {
             pg_gyros.addDouble("mpu" + i, "Z Axis MPU6050-" + i, 0.0);
         }
-        for (int i = 0; i < imu_mpu.getNumSensors(); i++) {
+        for (int i = 0; i < num_sensors; i++) {
             pg_gyros.addDouble("mpu_psd" + i, "PSD Z Axis MPU6050-" + i, 0.0);
         }
 
@@ -64,18 +70,22 @@ public class Main
     {
         public void parameterChanged(ParameterGUI pg, String name)
         {
+            // Board still starting up
+            if (imu_mpu == null) {
+                return;
+            }
 
             if (name == "reset") {
                 if (running) {
                     running = false;
                     imu_mpu.exit();
-                    imu_mpu = new IMU(IMU.IMUType.MPU6050);;
+                    imu_mpu = newIMU();
                     System.gc();
                 }
             } else if (name == "start") {
                 if (!running) {
-                    // Calibrate and start IMU
-                    imu_mpu.calibrate(1000);
+                    // The IMU thread warm starts from the bias cache, or
+                    // calibrates if it is stale
                     imu_mpu.start();
                     time_started = System.currentTimeMillis();
                     running = true;
@@ -89,25 +99,54 @@ public class Main
             }
         }
     }
+    static IMU newIMU()
+    {
+        IMU imu = new IMU(IMU.IMUType.MPU6050);
+        imu.setBiasCache(bias_cache);
+        imu.setCalibrationMillis(1000);
+        // Follow the bias drift whenever the rig is still, only the Z gyros
+        // have real scales in imu.conf
+        imu.getStillnessDetector().setRateAxes(1 << 2);
+        imu.setStillnessDetection(true);
+        return imu;
+    }
+
     public static void main(String args[]) throws IOException
     {
+        // Start the board while the GUI is built
+        CompletableFuture<RAIGDriver> driver = RAIGDriver.getSingletonAsync();
+        num_sensors = Integer.parseInt(IMU.loadConf().getProperty("MPU6050_NUM_SENSORS"));
         new Main();
+        try {
+            driver.join();
+        }
+        catch (CompletionException e) {
+            // Nothing to show without a board
+            JOptionPane.showMessageDialog(null, "RAIG board did not start: " + e.getCause().getMessage(),
+                                          "RAIG", JOptionPane.ERROR_MESSAGE);
+            System.exit(1);
+        }
+        imu_mpu = newIMU();
+
+        // All values shown at once come from the same frame
+        IMUState.Snapshot state = imu_mpu.newSnapshot();
 
         while (true) {
 
             if (running) {
+                imu_mpu.readState(state);
                 for (int i = 0; i < imu_mpu.getNumSensors(); i++) {
-                    pg_gyros.sd("mpu" + i, imu_mpu.getSensorHeadings()[i][2]);
+                    pg_gyros.sd("mpu" + i, state.headings[i][2]);
                 }
-                pg_algos.sd("average", imu_mpu.getAverageHeadings()[2]);
-                pg_algos.sd("best", imu_mpu.getBestHeadings()[2]);
-                pg_algos.sd("wa", imu_mpu.getWAverageHeadings()[2]);
-                pg_algos.sd("wa2", imu_mpu.getWAverage2Headings()[2]);
+                pg_algos.sd("average", state.fused_headings[IMU.FUSION_AVERAGE][2]);
+                pg_algos.sd("best", state.fused_headings[IMU.FUSION_BEST][2]);
+                pg_algos.sd("wa", state.fused_headings[IMU.FUSION_WA][2]);
+                pg_algos.sd("wa2", state.fused_headings[IMU.FUSION_WA2][2]);
                 
                 pg_controls.si("time", (int)(System.currentTimeMillis() - time_started)/1000);
                 
             } else {
-                for (int i = 0; i < imu_mpu.getNumSensors(); i++) {
+                for (int i = 0; i < num_sensors; i++) {
                     pg_gyros.sd("mpu" + i, 0.0);
                 }
                 pg_algos.sd("average", 0.0);
@@ -0,0 +1,206 @@
+import java.util.*;
+import java.lang.*;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.*;
+
+// Named counters and gauges of one component, published as a JMX MBean
+// Counters are LongAdders, so threads incrementing the same counter do not
+// contend; they are only summed when read. Gauges are read when asked for.
+// Every counter also has a "<name>Rate" attribute, its average per second
+// since the previous read that was at least a second earlier.
+// All counters and gauges are added before register(), and are shown in
+// jconsole/VisualVM under the "raig" domain.
+public class Metrics implements DynamicMBean
+{
+    static final String DOMAIN = "raig";
+    static final long RATE_NANOS = 1000000000L;
+
+    private static class Counter
+    {
+        final LongAdder adder = new LongAdder();
+        final String description;
+        long last_value = 0;
+        long last_nanos = System.nanoTime();
+        double rate = 0.0;
+
+        Counter(String description)
+        {
+            this.description = description;
+        }
+
+        synchronized double rate()
+        {
+            long now = System.nanoTime();
+            if (now - last_nanos >= RATE_NANOS) {
+                long value = adder.sum();
+                rate = (value - last_value)*1e9/(now - last_nanos);
+                last_value = value;
+                last_nanos = now;
+            }
+            return rate;
+        }
+    }
+
+    private static class Gauge
+    {
+        final LongSupplier value;
+        final String description;
+
+        Gauge(LongSupplier value, String description)
+        {
+            this.value = value;
+            this.description = description;
+        }
+    }
+
+    private final String object_name;
+    private final Map<String, Counter> counters = new LinkedHashMap<String, Counter>();
+    private final Map<String, Gauge> gauges = new LinkedHashMap<String, Gauge>();
+    private ObjectName registered = null;
+
+    // Properties of the MBean name, e.g. "type=RAIGDriver,board=0"
+    public Metrics(String properties)
+    {
+        object_name = DOMAIN + ":" + properties;
+    }
+
+    // Add a counter, increment the returned adder to count
+    public LongAdder counter(String name, String description)
+    {
+        Counter c = new Counter(description);
+        counters.put(name, c);
+        return c.adder;
+    }
+
+    public void gauge(String name, String description, LongSupplier value)
+    {
+        gauges.put(name, new Gauge(value, description));
+    }
+
+    // Current value of a counter or gauge
+    public long get(String name)
+    {
+        Counter c = counters.get(name);
+        if (c != null) {
+            return c.adder.sum();
+        }
+        return gauges.get(name).value.getAsLong();
+    }
+
+    // One line per counter and gauge
+    public String report()
+    {
+        StringBuilder s = new StringBuilder();
+        for (Map.Entry<String, Counter> e : counters.entrySet()) {
+            s.append(String.format("%-24s %14d  %10.1f/s%n", e.getKey(), e.getValue().adder.sum(), e.getValue().rate()));
+        }
+        for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+            s.append(String.format("%-24s %14d%n", e.getKey(), e.getValue().value.getAsLong()));
+        }
+        return s.toString();
+    }
+
+    // Publish on the platform MBean server
+    public synchronized void register()
+    {
+        if (registered != null) {
+            return;
+        }
+        try {
+            ObjectName n = new ObjectName(object_name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, n);
+            registered = n;
+        } catch (Exception e) {
+            System.err.println(e.toString());
+        }
+    }
+
+    public synchronized void unregister()
+    {
+        if (registered == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+        } catch (Exception e) {
+            System.err.println(e.toString());
+        }
+        registered = null;
+    }
+
+    public String getObjectName()
+    {
+        return object_name;
+    }
+
+    //
+    //
+    // DynamicMBean
+    //
+    //
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException
+    {
+        Counter c = counters.get(attribute);
+        if (c != null) {
+            return c.adder.sum();
+        }
+        Gauge g = gauges.get(attribute);
+        if (g != null) {
+            return g.value.getAsLong();
+        }
+        if (attribute.endsWith("Rate")) {
+            c = counters.get(attribute.substring(0, attribute.length() - 4));
+            if (c != null) {
+                return c.rate();
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    public AttributeList getAttributes(String attributes[])
+    {
+        AttributeList list = new AttributeList();
+        for (String a : attributes) {
+            try {
+                list.add(new Attribute(a, getAttribute(a)));
+            }
+            catch (AttributeNotFoundException e) { }
+        }
+        return list;
+    }
+
+    // All attributes are read-only
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+    {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    public AttributeList setAttributes(AttributeList attributes)
+    {
+        return new AttributeList();
+    }
+
+    public Object invoke(String action, Object params[], String signature[]) throws ReflectionException
+    {
+        throw new ReflectionException(new NoSuchMethodException(action));
+    }
+
+    public MBeanInfo getMBeanInfo()
+    {
+        List<MBeanAttributeInfo> attrs = new ArrayList<MBeanAttributeInfo>();
+        for (Map.Entry<String, Counter> e : counters.entrySet()) {
+            attrs.add(new MBeanAttributeInfo(e.getKey(), "long", e.getValue().description, true, false, false));
+            attrs.add(new MBeanAttributeInfo(e.getKey() + "Rate", "double",
+                                             e.getValue().description + " per second", true, false, false));
+        }
+        for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+            attrs.add(new MBeanAttributeInfo(e.getKey(), "long", e.getValue().description, true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "RAIG metrics",
+                             attrs.toArray(new MBeanAttributeInfo[attrs.size()]),
+                             null, null, null);
+    }
+}
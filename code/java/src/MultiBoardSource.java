@@ -0,0 +1,263 @@
+import java.util.*;
+import java.lang.*;
+import java.util.concurrent.TimeUnit;
+
+// Merges the frames of several boards into one stream
+// Every board has its own clock, so each board's timestamps are first moved
+// onto a common time base:
+//   START    the first frame of every board is taken to be simultaneous
+//            (recordings and simulations)
+//   ARRIVAL  the host time a frame was decoded, less the smallest latency
+//            seen so far, which is allowed to creep up by CLOCK_SLEW so a
+//            slow board clock is followed (live boards)
+// poll() waits until every board has a frame (or max_wait passes, so a dead
+// board does not stall the others), then merges all frames within tolerance
+// of the earliest into one batch stamped with its time. Sensor ids are
+// renumbered so board b's sensors follow those of the boards before it.
+// Like the other sources, one thread polls and releases, and merged batches
+// are reused.
+public class MultiBoardSource implements SampleSource
+{
+    public enum Alignment
+    {
+        START, ARRIVAL
+    }
+
+    // How long to wait on one board at a time for a missing frame
+    static final long SLICE_NANOS = 500000;
+    // Drift allowed between a board clock and the host clock
+    static final double CLOCK_SLEW = 1e-4;
+
+    private final SampleSource sources[];
+    private final int sensors[];
+    private final int id_offset[];
+    private final Alignment alignment;
+    private long tolerance_millis = 10;
+    private long max_wait_millis = 20;
+
+    // Frame waiting to be merged from each board and its aligned timestamp
+    private final SampleBatch pending[];
+    private final long aligned[];
+    // Board time to common time offset of each board (ms)
+    private final double offset[];
+    private final boolean offset_known[];
+    private final long last_time[];
+    // First board timestamp seen, the common time base for START
+    private long start_time = 0;
+    private boolean started = false;
+    // When the first of the current pending frames arrived
+    private long first_pending_nanos = 0;
+
+    private final int batch_capacity;
+    private final ArrayDeque<SampleBatch> free = new ArrayDeque<SampleBatch>();
+
+    // sensors[b] is the number of sensors on board b, samples with higher
+    // ids are dropped
+    public MultiBoardSource(SampleSource sources[], int sensors[], Alignment alignment)
+    {
+        this.sources = sources.clone();
+        this.sensors = sensors.clone();
+        this.alignment = alignment;
+        int n = sources.length;
+        id_offset = new int[n];
+        int total = 0;
+        for (int b = 0; b < n; b++) {
+            id_offset[b] = total;
+            total += sensors[b];
+        }
+        pending = new SampleBatch[n];
+        aligned = new long[n];
+        offset = new double[n];
+        offset_known = new boolean[n];
+        last_time = new long[n];
+        batch_capacity = n*FrameDecoder.MAX_FRAME_SAMPLES;
+    }
+
+    public SampleBatch poll(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        long now = System.nanoTime();
+        long deadline = now + unit.toNanos(timeout);
+
+        while (true) {
+            int have = 0;
+            int waiting = -1;
+            for (int b = 0; b < sources.length; b++) {
+                if (pending[b] == null) {
+                    take(b, sources[b].poll(0, TimeUnit.NANOSECONDS));
+                }
+                if (pending[b] != null || sources[b].isFinished()) {
+                    have++;
+                } else if (waiting < 0) {
+                    waiting = b;
+                }
+            }
+
+            now = System.nanoTime();
+            if (have == sources.length) {
+                break;
+            }
+            boolean any = (first_pending_nanos != 0);
+            if (any && now - first_pending_nanos >= TimeUnit.MILLISECONDS.toNanos(max_wait_millis)) {
+                break;
+            }
+            if (now >= deadline) {
+                if (!any) {
+                    return null;
+                }
+                break;
+            }
+            // Wait a little on a board that has nothing yet
+            take(waiting, sources[waiting].poll(Math.min(SLICE_NANOS, deadline - now), TimeUnit.NANOSECONDS));
+        }
+
+        return merge();
+    }
+
+    // Hold a frame from board b until it is merged
+    private void take(int b, SampleBatch frame)
+    {
+        if (frame == null) {
+            return;
+        }
+        pending[b] = frame;
+        aligned[b] = align(b, frame);
+        if (first_pending_nanos == 0) {
+            first_pending_nanos = System.nanoTime();
+        }
+    }
+
+    // Timestamp of a frame on the common time base
+    private long align(int b, SampleBatch frame)
+    {
+        long t = frame.timestamp;
+        if (alignment == Alignment.START) {
+            if (!started) {
+                start_time = t;
+                started = true;
+            }
+            if (!offset_known[b]) {
+                offset[b] = start_time - t;
+                offset_known[b] = true;
+            }
+        } else {
+            long host = (frame.host_nanos != 0) ? frame.host_nanos : System.nanoTime();
+            double seen = host/1e6 - t;
+            if (!offset_known[b]) {
+                offset[b] = seen;
+                offset_known[b] = true;
+            } else {
+                offset[b] = Math.min(offset[b] + CLOCK_SLEW*Math.max(0, t - last_time[b]), seen);
+            }
+        }
+        last_time[b] = t;
+        return t + Math.round(offset[b]);
+    }
+
+    // Combine the pending frames close to the earliest one
+    private SampleBatch merge()
+    {
+        long t0 = Long.MAX_VALUE;
+        for (int b = 0; b < sources.length; b++) {
+            if (pending[b] != null && aligned[b] < t0) {
+                t0 = aligned[b];
+            }
+        }
+        if (t0 == Long.MAX_VALUE) {
+            first_pending_nanos = 0;
+            return null;
+        }
+
+        SampleBatch out = free.poll();
+        if (out == null) {
+            out = new SampleBatch(batch_capacity);
+        }
+        out.clear();
+        out.timestamp = t0;
+        out.board = -1;
+
+        first_pending_nanos = 0;
+        for (int b = 0; b < sources.length; b++) {
+            SampleBatch f = pending[b];
+            if (f == null) {
+                continue;
+            }
+            if (aligned[b] > t0 + tolerance_millis) {
+                // Belongs to a later frame, still pending
+                first_pending_nanos = System.nanoTime();
+                continue;
+            }
+            if (out.host_nanos == 0 || (f.host_nanos != 0 && f.host_nanos < out.host_nanos)) {
+                out.host_nanos = f.host_nanos;
+            }
+            if (out.rx_nanos == 0 || (f.rx_nanos != 0 && f.rx_nanos < out.rx_nanos)) {
+                out.rx_nanos = f.rx_nanos;
+            }
+            for (int s = 0; s < f.size && !out.isFull(); s++) {
+                int id = f.id[s];
+                if (id >= 0 && id < sensors[b]) {
+                    out.add(id + id_offset[b],
+                            f.rate[3*s], f.rate[3*s+1], f.rate[3*s+2],
+                            f.accel[3*s], f.accel[3*s+1], f.accel[3*s+2],
+                            f.temp[s]);
+                }
+            }
+            sources[b].release(f);
+            pending[b] = null;
+        }
+        return out;
+    }
+
+    public void release(SampleBatch b)
+    {
+        if (b != null) {
+            free.add(b);
+        }
+    }
+
+    public void setWaitStrategy(SampleRing.WaitStrategy w)
+    {
+        for (SampleSource s : sources) {
+            s.setWaitStrategy(w);
+        }
+    }
+
+    public boolean isFinished()
+    {
+        for (int b = 0; b < sources.length; b++) {
+            if (pending[b] != null || !sources[b].isFinished()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getNumBoards()
+    {
+        return sources.length;
+    }
+
+    // Id of the first sensor of a board in the merged stream
+    public int getSensorOffset(int board)
+    {
+        return id_offset[board];
+    }
+
+    // Board time to common time offset (ms)
+    public double getClockOffset(int board)
+    {
+        return offset[board];
+    }
+
+    // Frames whose aligned times are this close are merged (ms)
+    // About half the frame period works well
+    public void setTolerance(long millis)
+    {
+        tolerance_millis = millis;
+    }
+
+    // Longest wait for the other boards once one board has a frame (ms)
+    public void setMaxWait(long millis)
+    {
+        max_wait_millis = millis;
+    }
+}
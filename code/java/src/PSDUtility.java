@@ -15,9 +15,9 @@ public class PSDUtility
         imu_lsm.calibrate(1000);
         imu_mpu.calibrate(1000);
 
-        // Calculate PSDs
-        imu_lsm.calculatePSD(1000);
-        imu_mpu.calculatePSD(1000);
+        // Calculate PSDs, long enough for a few spectrum segments
+        imu_lsm.calculatePSD(10000);
+        imu_mpu.calculatePSD(10000);
        
         // Read ARWs
         for (int i = 0; i < imu_lsm.getNumSensors(); i++) {
@@ -29,6 +29,14 @@ public class PSDUtility
         System.out.println("LSMFUSEDZ" + ":\t" + IMU.toDegrees(IMU.toRRW(imu_lsm.getAveragePSDs()[2])));
         System.out.println("MPUFUSEDZ" + ":\t" + IMU.toDegrees(IMU.toRRW(imu_mpu.getAveragePSDs()[2])));
 
+        // Spectrum of the averaged Z axis in (deg/sec)^2/Hz
+        WelchPSD spectrum = imu_mpu.getAverageSpectrum(2);
+        double psd[] = spectrum.getSpectrum();
+        System.out.println("MPUFUSEDZ spectrum (" + spectrum.getSegments() + " segments):");
+        for (int k = 0; k < psd.length; k++) {
+            System.out.println(spectrum.getFrequency(k) + " Hz:\t" + IMU.toDegrees(IMU.toDegrees(psd[k])));
+        }
+
         // Done, close threads and exit
         System.exit(0);
     }
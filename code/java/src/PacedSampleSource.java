@@ -0,0 +1,98 @@
+import java.util.*;
+import java.lang.*;
+import java.util.concurrent.TimeUnit;
+
+// Base for sources that produce batches on demand (recordings, simulations)
+// Batches are created in the consumer's thread when it polls. At speed 1.0 a
+// batch is held back until its timestamp comes due on the host clock, at
+// speed 2.0 the stream plays twice as fast, and at speed 0 every batch is
+// handed out immediately so the pipeline runs as fast as it can. A batch
+// gets the host time it is handed out at, as if it had just come from a board.
+public abstract class PacedSampleSource implements SampleSource
+{
+    // Playback speed relative to real time (0 for as fast as possible)
+    private volatile double speed = 1.0;
+
+    // Next batch to hand out
+    private SampleBatch pending = null;
+    private boolean finished = false;
+
+    // Host time and stream time of the first batch, used for pacing
+    private long start_nanos = 0;
+    private long start_timestamp = 0;
+    private boolean started = false;
+
+    // Produce the next batch, or null at the end of the stream
+    protected abstract SampleBatch next();
+
+    // Take back a batch that was returned by next()
+    protected abstract void recycle(SampleBatch b);
+
+    public SampleBatch poll(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        if (pending == null && !finished) {
+            pending = next();
+            finished = (pending == null);
+        }
+        if (pending == null) {
+            // Nothing more will come, behave like an idle source
+            unit.sleep(timeout);
+            return null;
+        }
+
+        if (!started) {
+            start_nanos = System.nanoTime();
+            start_timestamp = pending.timestamp;
+            started = true;
+        }
+
+        double s = speed;
+        if (s > 0.0) {
+            long due = start_nanos + (long)((pending.timestamp - start_timestamp)*1e6/s);
+            long wait = Math.min(due, deadline) - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            if (System.nanoTime() < due) {
+                return null;
+            }
+        }
+
+        SampleBatch b = pending;
+        pending = null;
+        b.rx_nanos = System.nanoTime();
+        b.host_nanos = b.rx_nanos;
+        return b;
+    }
+
+    public void release(SampleBatch b)
+    {
+        if (b != null) {
+            recycle(b);
+        }
+    }
+
+    // Batches are made on demand, so there is nothing to wait on
+    public void setWaitStrategy(SampleRing.WaitStrategy w)
+    {
+    }
+
+    public boolean isFinished()
+    {
+        return finished;
+    }
+
+    public double getSpeed()
+    {
+        return speed;
+    }
+
+    // Set playback speed relative to real time (0 for as fast as possible)
+    // Should be set before the first poll
+    public void setSpeed(double s)
+    {
+        speed = s;
+    }
+}
@@ -0,0 +1,87 @@
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+import java.util.concurrent.TimeUnit;
+
+// Measures producer-to-consumer latency of the sample queues
+// A producer thread publishes a batch every few milliseconds, stamped with
+// System.nanoTime(), and the consumer records how long each batch waited.
+// The consumer runs three ways:
+//   sleep-poll  - check the queue, Thread.sleep(10) when empty (the old IMU loop)
+//   blocking    - park until the producer publishes
+//   busy-spin   - spin on the queue (needs a spare core)
+// Usage: QueueLatencyBenchmark [frames] [period_millis]
+public class QueueLatencyBenchmark
+{
+    public static void main(String args[]) throws Exception
+    {
+        int frames = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+        long period = (args.length > 1) ? Long.parseLong(args[1]) : 5;
+
+        System.out.println("Latency in microseconds over " + frames + " frames, " +
+                           period + " ms apart");
+        run("sleep-poll", null, frames, period);
+        run("blocking", SampleRing.WaitStrategy.BLOCKING, frames, period);
+        run("busy-spin", SampleRing.WaitStrategy.BUSY_SPIN, frames, period);
+    }
+
+    // Consume frames with the given wait strategy (null for sleep-polling)
+    static void run(String name, SampleRing.WaitStrategy wait, final int frames, final long period)
+        throws Exception
+    {
+        final BatchQueue queue = new BatchQueue(RAIGDriver.QUEUE_CAPACITY, 1,
+                                                SampleRing.OverflowPolicy.BLOCK);
+        if (wait != null) {
+            queue.setWaitStrategy(wait);
+        }
+
+        Thread producer = new Thread() {
+            public void run()
+            {
+                Random rand = new Random(0);
+                try {
+                    for (int i = 0; i < frames; i++) {
+                        // Jitter the period so frames do not line up with the sleep-poll
+                        Thread.sleep(period, rand.nextInt(1000000));
+                        SampleBatch b = queue.acquire();
+                        b.timestamp = System.nanoTime();
+                        queue.publish(b);
+                    }
+                }
+                catch (Exception e) { return; }
+            }
+        };
+        producer.start();
+
+        long latency[] = new long[frames];
+        for (int n = 0; n < frames; n++) {
+            SampleBatch b;
+            if (wait == null) {
+                while ((b = queue.poll()) == null) {
+                    Thread.sleep(10);
+                }
+            } else {
+                b = queue.poll(1, TimeUnit.SECONDS);
+                if (b == null) {
+                    System.out.println(name + ": producer stalled");
+                    return;
+                }
+            }
+            latency[n] = System.nanoTime() - b.timestamp;
+            queue.release(b);
+        }
+        producer.join();
+
+        Arrays.sort(latency);
+        double total = 0;
+        for (int n = 0; n < frames; n++) {
+            total += latency[n];
+        }
+        System.out.format("%-10s  mean %9.1f  p50 %9.1f  p99 %9.1f  max %9.1f%n",
+                          name,
+                          total/frames/1e3,
+                          latency[frames/2]/1e3,
+                          latency[(int)(frames*0.99)]/1e3,
+                          latency[frames - 1]/1e3);
+    }
+}
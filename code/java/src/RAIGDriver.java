@@ -2,52 +2,300 @@ import java.io.*;
 import java.util.*;
 import java.nio.*;
 import java.lang.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 import jssc.*;
 import java.util.Enumeration;
 import java.util.Properties;
 
 
-public class RAIGDriver implements SerialPortEventListener 
+// Reads one RAIG board on one serial port
+// Each driver has its own port event thread, decoder and queues, so several
+// boards (see DriverRegistry) are read in parallel. Frames of a sensor type
+// are only decoded and queued while it has subscribers (see subscribe).
+public class RAIGDriver implements SerialPortEventListener
 {
-    private static RAIGDriver singleton = null;
+    // Port of the first board
+    static final String DEFAULT_PORT = "/dev/ttyUSB0";
 
 	SerialPort serialPort;
+    // Board id of this driver, put on every decoded frame
+    private final int board;
 
-    // Queues for decoded IMU data
-    public volatile LinkedList<IMUSamples> lsm_data = new LinkedList<IMUSamples>();
-    public volatile LinkedList<IMUSamples> mpu_data = new LinkedList<IMUSamples>();
+    // Capacity of each queue in frames (about 90 seconds of data at 45 Hz)
+    static final int QUEUE_CAPACITY = 4096;
 
-    // Rate, acceleration, and temperature data from a single sensor
-    // at a single point in time
-    public class IMUSample
-    {
-        // Unprocessed sensor data
-        public int temp;
-        public short rate[] = new short[3];
-        public short accel[] = new short[3];
-        // Sensor ID
-        // Guaranteed to be from 0 to num sensors-1 
-        public byte id;
-    };
+    // How long a board has to send its first valid frame once its port is
+    // opened, the Arduino resets on opening and only sends frames once its
+    // sketch is running again
+    static final long READY_TIMEOUT_MILLIS = 10000;
+
+    // Completed with this driver once a frame has passed all the decoder's
+    // checks after the port was opened, or with the error if the port could
+    // not be opened or no frame came in time
+    private final CompletableFuture<RAIGDriver> ready = new CompletableFuture<RAIGDriver>();
+    // Fails the ready futures of boards that stay silent
+    private static final Timer ready_timer = new Timer("RAIGDriver ready timeout", true);
+
+    // Buses for decoded IMU data
+    // Filled by the serial event thread while subscribed, every subscriber
+    // reads every frame. A subscriber that falls a whole bus behind loses
+    // its oldest frames.
+    public final SampleBus lsm_data = new SampleBus(QUEUE_CAPACITY,
+                                                    FrameDecoder.MAX_FRAME_SAMPLES,
+                                                    SampleRing.OverflowPolicy.DROP_OLDEST);
+    public final SampleBus mpu_data = new SampleBus(QUEUE_CAPACITY,
+                                                    FrameDecoder.MAX_FRAME_SAMPLES,
+                                                    SampleRing.OverflowPolicy.DROP_OLDEST);
 
-    // Several IMU samples from the same point in time
-    public class IMUSamples
+    // Turns received bytes into SampleBatches
+    private FrameDecoder decoder = new FrameDecoder(lsm_data, mpu_data);
+
+    // Current subscriptions, their ids make up the decoder's sensor masks
+    private final List<Subscription> subscriptions = new ArrayList<Subscription>();
+
+    // A consumer's interest in the frames of one sensor type
+    // Frames are read through it like any other source, by a single thread,
+    // and cancel() stops them. Every subscription has its own place on the
+    // type's bus, so several consumers (e.g. fusion and a recorder) each
+    // get every frame with the sensors they asked for.
+    public class Subscription implements SampleSource
     {
-        public long timestamp;
-        public Vector<IMUSample> samples;
-    };
+        private final IMU.IMUType type;
+        private final int mask;
+        private final SampleBus.Consumer consumer;
+
+        private Subscription(IMU.IMUType type, int mask)
+        {
+            this.type = type;
+            this.mask = mask;
+            consumer = getSource(type).subscribe(mask);
+        }
+
+        // Take the next frame, or null if there is none
+        public SampleBatch poll()
+        {
+            return consumer.poll();
+        }
+
+        public SampleBatch poll(long timeout, TimeUnit unit) throws InterruptedException
+        {
+            return consumer.poll(timeout, unit);
+        }
+
+        public void release(SampleBatch b)
+        {
+            consumer.release(b);
+        }
+
+        public void setWaitStrategy(SampleRing.WaitStrategy w)
+        {
+            consumer.setWaitStrategy(w);
+        }
+
+        public boolean isFinished()
+        {
+            return false;
+        }
+
+        public IMU.IMUType getType()
+        {
+            return type;
+        }
+
+        // Number of frames waiting to be read
+        public int size()
+        {
+            return consumer.size();
+        }
+
+        // Skip the frames waiting to be read
+        public void clear()
+        {
+            consumer.clear();
+        }
+
+        // Number of frames lost by falling too far behind
+        public long getDropped()
+        {
+            return consumer.getDropped();
+        }
+
+        // A new subscription to the same sensors, for another thread
+        public Subscription duplicate()
+        {
+            return subscribeMask(type, mask);
+        }
+
+        // Stop receiving frames
+        public void cancel()
+        {
+            unsubscribe(this);
+        }
+    }
 
+    // Raw serial bytes are copied here when set, for later replay
+    private OutputStream capture = null;
+
+    // Counters of this board, published over JMX while the port is open
+    private final Metrics metrics;
+    private final LongAdder bytes_received;
+    private final LongAdder frames_decoded;
+    private final LongAdder frames_rejected;
+    private final LongAdder bytes_skipped;
+    // Decoder counts already added to the counters
+    private long last_frames = 0;
+    private long last_rejected = 0;
+    private long last_skipped = 0;
+
+    // The first board, opened on DEFAULT_PORT if no board is open yet
+    // Waits until the board is sending frames
     public static RAIGDriver getSingleton()
     {
-        if (singleton == null) {
-            singleton = new RAIGDriver();
+        return DriverRegistry.getDefault();
+    }
+
+    // The first board without waiting for it, see getReady()
+    public static CompletableFuture<RAIGDriver> getSingletonAsync()
+    {
+        return DriverRegistry.getDefaultAsync();
+    }
+
+    // Completes with this driver once the board is sending valid frames
+    // Fails with a TimeoutException if it stayed silent, or with the error
+    // that kept the port from opening. Callers get their own future, so
+    // completing or cancelling it does not affect the driver.
+    public CompletableFuture<RAIGDriver> getReady()
+    {
+        return ready.thenApply(d -> d);
+    }
+
+    // Wait until the board is sending valid frames, even if interrupted
+    // Returns false (and prints why) if it never will
+    public boolean awaitReady()
+    {
+        try {
+            ready.join();
+            return true;
         }
-        return singleton;
+        catch (CompletionException e) {
+            System.err.println(e.getCause().toString());
+            return false;
+        }
+    }
+
+    public boolean isReady()
+    {
+        return ready.isDone() && !ready.isCompletedExceptionally();
     }
 
-	protected RAIGDriver() 
+    // True once the port failed to open or the board stayed silent
+    public boolean hasFailed()
     {
-	    serialPort = new SerialPort("/dev/ttyUSB0");
+        return ready.isCompletedExceptionally();
+    }
+
+    public int getBoard()
+    {
+        return board;
+    }
+
+    public String getPortName()
+    {
+        return serialPort.getPortName();
+    }
+
+    // Bus of decoded frames for the given sensor type
+    // Only filled while the type has subscribers
+    public SampleBus getSource(IMU.IMUType type)
+    {
+        switch (type) {
+            case LSM330:
+                return lsm_data;
+            case MPU6050:
+                return mpu_data;
+        }
+        return null;
+    }
+
+    // Start decoding and queueing frames of a sensor type for a consumer,
+    // with only the given sensor ids (all of them if none are given)
+    public Subscription subscribe(IMU.IMUType type, int... ids)
+    {
+        int mask = FrameDecoder.ALL_SENSORS;
+        if (ids.length > 0) {
+            mask = 0;
+            for (int id : ids) {
+                mask |= 1 << id;
+            }
+        }
+        return subscribeMask(type, mask);
+    }
+
+    private synchronized Subscription subscribeMask(IMU.IMUType type, int mask)
+    {
+        Subscription s = new Subscription(type, mask);
+        subscriptions.add(s);
+        updateMasks(type);
+        return s;
+    }
+
+    private synchronized void unsubscribe(Subscription s)
+    {
+        if (subscriptions.remove(s)) {
+            s.consumer.close();
+            updateMasks(s.type);
+        }
+    }
+
+    // Decode the sensors some subscription of the type wants
+    private void updateMasks(IMU.IMUType type)
+    {
+        int mask = 0;
+        for (Subscription s : subscriptions) {
+            if (s.type == type) {
+                mask |= s.mask;
+            }
+        }
+        decoder.setSensorMask(type, mask);
+    }
+
+    public synchronized int getNumSubscriptions()
+    {
+        return subscriptions.size();
+    }
+
+    // Copy every byte received from the board to out (null to stop)
+    // The copy can be played back with ReplaySampleSource
+    public synchronized void setCapture(OutputStream out)
+    {
+        capture = out;
+    }
+
+    // Open a board, boards are normally opened through DriverRegistry
+    // Returns once the port is open, the board is ready (see getReady) when
+    // it has sent a valid frame, which must be within ready_millis
+	protected RAIGDriver(final String port, int board_id, final long ready_millis)
+    {
+        board = board_id;
+        decoder.setBoard(board_id);
+        // Nothing is queued until subscribed
+        decoder.setSensorMask(IMU.IMUType.LSM330, 0);
+        decoder.setSensorMask(IMU.IMUType.MPU6050, 0);
+        metrics = new Metrics("type=RAIGDriver,board=" + board_id);
+        bytes_received = metrics.counter("BytesReceived", "Bytes read from the serial port");
+        frames_decoded = metrics.counter("FramesDecoded", "Frames that passed all checks");
+        frames_rejected = metrics.counter("FramesRejected", "Frames with a bad checksum, sensor id, length or time");
+        bytes_skipped = metrics.counter("BytesSkipped", "Bytes skipped to find the next frame");
+        metrics.gauge("LsmQueueDepth", "LSM330 frames the slowest subscriber has not read", () -> lsm_data.size());
+        metrics.gauge("MpuQueueDepth", "MPU6050 frames the slowest subscriber has not read", () -> mpu_data.size());
+        metrics.gauge("LsmDropped", "LSM330 frames lost by subscribers that fell behind", () -> lsm_data.getDropped());
+        metrics.gauge("MpuDropped", "MPU6050 frames lost by subscribers that fell behind", () -> mpu_data.getDropped());
+        metrics.gauge("Subscriptions", "Consumers subscribed to frames", () -> getNumSubscriptions());
+	    serialPort = new SerialPort(port);
 
 		try {
 			serialPort.openPort();
@@ -55,15 +303,27 @@ public class RAIGDriver implements SerialPortEventListener
                                  SerialPort.DATABITS_8,
                                  SerialPort.STOPBITS_1,
                                  SerialPort.PARITY_NONE);
+            // Bytes sent before the reset must not count as a first frame
+            serialPort.purgePort(SerialPort.PURGE_RXCLEAR | SerialPort.PURGE_TXCLEAR);
 
             int mask = SerialPort.MASK_RXCHAR;
             serialPort.setEventsMask(mask);
             serialPort.addEventListener(this);
+            // Only a port that opened gets an MBean, so a failed open leaves
+            // nothing registered under the board's name (DriverRegistry
+            // replaces the board under the same id on the next attempt)
+            metrics.register();
 
-            // Wait for port to be opened
-            Thread.sleep(8000);
+            ready_timer.schedule(new TimerTask() {
+                public void run()
+                {
+                    ready.completeExceptionally(
+                        new TimeoutException("No valid frame from " + port + " in " + ready_millis + " ms"));
+                }
+            }, ready_millis);
 		} catch (Exception e) {
 			System.err.println(e.toString());
+            ready.completeExceptionally(e);
 		}
 	}
 
@@ -72,6 +332,7 @@ public class RAIGDriver implements SerialPortEventListener
 	 * This will prevent port locking on platforms like Linux.
 	 */
 	public synchronized void close() {
+        metrics.unregister();
         try {
 		    if (serialPort != null) {
 			    serialPort.removeEventListener();
@@ -87,96 +348,52 @@ public class RAIGDriver implements SerialPortEventListener
 	 */
 	public synchronized void serialEvent(SerialPortEvent oEvent) {
 		if (oEvent.isRXCHAR()) {
-            demarshall();	
+            // Event value is the number of bytes in the input buffer
+            demarshall(oEvent.getEventValue(), System.nanoTime());
 		}
 	}
 
-    // Demarshall the RAIG messages and put on message queue
-    private synchronized void demarshall()
+    // Read all bytes waiting on the port and hand them to the decoder
+    // rx_nanos is when the port reported them
+    private void demarshall(int count, long rx_nanos)
     {
         try {
-            IMUSamples newLsms = new IMUSamples();
-            newLsms.samples = new Vector<IMUSample>();
-            IMUSamples newMpus = new IMUSamples();
-            newMpus.samples = new Vector<IMUSample>();
-
-            byte checksum = 0;
-
-		    while (true) {
-                char curByte = (char)serialPort.readBytes(1)[0];
-                // State machine processes messages
-                switch (curByte) {
-                    case 'L':
-                        IMUSample newLsm = new IMUSample();
-                        // Get sensor ID
-                        newLsm.id = (byte)serialPort.readBytes(1)[0];
-                        // Get rate data
-                        newLsm.rate[0] = (short)(newLsm.rate[0] | (serialPort.readBytes(1)[0] & 0xFF));
-                        newLsm.rate[0] = (short)(newLsm.rate[0] | ((serialPort.readBytes(1)[0] & 0xFF) << 8));
-                        newLsm.rate[1] = (short)(newLsm.rate[1] | (serialPort.readBytes(1)[0] & 0xFF));
-                        newLsm.rate[1] = (short)(newLsm.rate[1] | ((serialPort.readBytes(1)[0] << 8) & 0xFF00));
-                        newLsm.rate[2] = (short)(newLsm.rate[2] | (serialPort.readBytes(1)[0] & 0xFF));
-                        newLsm.rate[2] = (short)(newLsm.rate[2] | ((serialPort.readBytes(1)[0] << 8) & 0xFF00));
-                        // Get acceleration data
-                        newLsm.accel[0] = (short)(newLsm.accel[0] | (serialPort.readBytes(1)[0] & 0xFF));
-                        newLsm.accel[0] = (short)(newLsm.accel[0] | ((serialPort.readBytes(1)[0] << 8) & 0xFF00));
-                        newLsm.accel[1] = (short)(newLsm.accel[1] | (serialPort.readBytes(1)[0] & 0xFF));
-                        newLsm.accel[1] = (short)(newLsm.accel[1] | ((serialPort.readBytes(1)[0] << 8) & 0xFF00));
-                        newLsm.accel[2] = (short)(newLsm.accel[2] | (serialPort.readBytes(1)[0] & 0xFF));
-                        newLsm.accel[2] = (short)(newLsm.accel[2] | ((serialPort.readBytes(1)[0] << 8) & 0xFF00));
-                        // Get temperature data
-                        newLsm.temp = (byte)serialPort.readBytes(1)[0];
-                        newLsms.samples.add(newLsm);
-                        break;
-                    case 'M':
-                        IMUSample newMpu = new IMUSample();
-                        // Get sensor ID
-                        newMpu.id = (byte)serialPort.readBytes(1)[0];
-                        // Get rate data
-                        newMpu.rate[0] = (short)serialPort.readBytes(1)[0];
-                        newMpu.rate[0] = (short)((newMpu.rate[0] << 8) | (serialPort.readBytes(1)[0] & 0xFF));
-                        newMpu.rate[1] = (short)serialPort.readBytes(1)[0];
-                        newMpu.rate[1] = (short)((newMpu.rate[1] << 8) | (serialPort.readBytes(1)[0] & 0xFF));
-                        newMpu.rate[2] = (short)serialPort.readBytes(1)[0];
-                        newMpu.rate[2] = (short)((newMpu.rate[2] << 8) | (serialPort.readBytes(1)[0] & 0xFF));
-                        // Get acceleration data
-                        newMpu.accel[0] = (short)serialPort.readBytes(1)[0];
-                        newMpu.accel[0] = (short)((newMpu.accel[0] << 8) | (serialPort.readBytes(1)[0] & 0xFF));
-                        newMpu.accel[1] = (short)serialPort.readBytes(1)[0];
-                        newMpu.accel[1] = (short)((newMpu.accel[1] << 8) | (serialPort.readBytes(1)[0] & 0xFF));
-                        newMpu.accel[2] = (short)serialPort.readBytes(1)[0];
-                        newMpu.accel[2] = (short)((newMpu.accel[2] << 8) | (serialPort.readBytes(1)[0] & 0xFF));
-                        // Get temperature data
-                        newMpu.temp = (short)serialPort.readBytes(1)[0];
-                        newMpu.temp = (short)((newMpu.temp << 8) | (serialPort.readBytes(1)[0] & 0xFF));
-                        newMpu.temp = newMpu.temp & 0xFFFF;
-                        newMpus.samples.add(newMpu);
-                        break;
-                    case 'T':
-                        long time = serialPort.readBytes(1)[0];
-                        time = ((time << 8) | (serialPort.readBytes(1)[0] & 0xFF));
-                        time = ((time << 8) | (serialPort.readBytes(1)[0] & 0xFF));
-                        time = ((time << 8) | (serialPort.readBytes(1)[0] & 0xFF));
-                        serialPort.readBytes(1);
-                        // TODO: Implement checksum
-                        // Add to queues and exit
-                        if (!newLsms.samples.isEmpty()) {
-                            newLsms.timestamp = time;
-                            lsm_data.add(newLsms);
-                        }
-                        if (!newMpus.samples.isEmpty()) {
-                            newMpus.timestamp = time;
-                            mpu_data.add(newMpus);
-                        }
-                        return;
-                    default: // Error in message?
-                        break;
+            if (count > 0) {
+                byte data[] = serialPort.readBytes(count);
+                decoder.decode(data, 0, data.length, rx_nanos);
+                updateMetrics(data.length);
+                if (!ready.isDone() && decoder.getFrameCount() > 0) {
+                    ready.complete(this);
+                }
+                if (capture != null) {
+                    capture.write(data);
                 }
             }
-		} catch (Exception e) {
-		    System.err.println(e.toString());
-		}
+        } catch (Exception e) {
+            System.err.println(e.toString());
+        }
 
     } // demarshall()
 
+    // Add what the decoder counted since the last call
+    private void updateMetrics(int bytes)
+    {
+        bytes_received.add(bytes);
+        long f = decoder.getFrameCount();
+        long r = decoder.getRejectedCount();
+        long s = decoder.getSkippedBytes();
+        frames_decoded.add(f - last_frames);
+        frames_rejected.add(r - last_rejected);
+        bytes_skipped.add(s - last_skipped);
+        last_frames = f;
+        last_rejected = r;
+        last_skipped = s;
+    }
+
+    // Counters and queue gauges of this board (also published over JMX)
+    public Metrics getMetrics()
+    {
+        return metrics;
+    }
+
 }
@@ -19,9 +19,11 @@ public class RateFile
         mpu_thread.start();
 
         writer.println("MPU 0 Z Axis,MPU 1 Z Axis,MPU 2 Z Axis,MPU 3 Z Axis");
+        IMUState.Snapshot state = imu_mpu.newSnapshot();
         while (true) {
+            imu_mpu.readState(state);
             for (int i = 0; i < imu_mpu.getNumSensors(); i++) {
-                writer.format("%15.14f", imu_mpu.getSensorRates()[i][2]);
+                writer.format("%15.14f", state.rates[i][2]);
                 if (i+1 < imu_mpu.getNumSensors()) {
                     writer.print(",");
                 } else {
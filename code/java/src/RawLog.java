@@ -0,0 +1,168 @@
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+// Append-only binary log of raw sensor samples
+// The file starts with a HEADER_SIZE byte header:
+//   int   magic ("RAIG")
+//   short format version
+//   short record size
+//   byte  sensor type (IMU.IMUType ordinal)
+//   byte  number of sensors
+//   6 bytes reserved
+// followed by one RECORD_SIZE byte record per sample:
+//   int   timestamp (ms, as sent by the board)
+//   byte  sensor ID
+//   short rate X, Y, Z
+//   short accel X, Y, Z
+//   short temperature (unsigned for MPU6050, signed for LSM330)
+// All values are big-endian. Records are collected in a direct buffer and
+// written with a FileChannel, and the file is synced every FSYNC_MILLIS so a
+// crash loses at most that much data. Read logs back with RawLogReader.
+public class RawLog
+{
+    static final int MAGIC = 0x52414947;
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 19;
+    // Records buffered before a write
+    static final int BUFFER_RECORDS = 4096;
+    static final long FSYNC_MILLIS = 1000;
+
+    private FileChannel channel;
+    private ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_RECORDS*RECORD_SIZE);
+    private long last_sync;
+    private long records = 0;
+
+    // Open a log for samples of the given sensor type
+    // With append set, records are added to an existing log with the same
+    // sensor type, otherwise the file is overwritten.
+    public RawLog(String file, IMU.IMUType type, int num_sensors, boolean append) throws IOException
+    {
+        channel = new RandomAccessFile(file, "rw").getChannel();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (append && channel.size() >= HEADER_SIZE) {
+            channel.read(header, 0);
+            header.flip();
+            checkHeader(header, file);
+            if (header.get(8) != type.ordinal()) {
+                channel.close();
+                throw new IOException(file + ": log holds a different sensor type");
+            }
+            // Drop a partial record left by a crash
+            records = (channel.size() - HEADER_SIZE)/RECORD_SIZE;
+            channel.truncate(HEADER_SIZE + records*RECORD_SIZE);
+        } else {
+            channel.truncate(0);
+            header.putInt(MAGIC);
+            header.putShort(VERSION);
+            header.putShort((short)RECORD_SIZE);
+            header.put((byte)type.ordinal());
+            header.put((byte)num_sensors);
+            // Write the reserved bytes too
+            header.rewind();
+            channel.write(header, 0);
+        }
+        channel.position(channel.size());
+        last_sync = System.currentTimeMillis();
+    }
+
+    // Check the magic number, version and record size of a header
+    static void checkHeader(ByteBuffer header, String file) throws IOException
+    {
+        if (header.remaining() < HEADER_SIZE || header.getInt(0) != MAGIC) {
+            throw new IOException(file + ": not a RAIG log");
+        }
+        if (header.getShort(4) != VERSION || header.getShort(6) != RECORD_SIZE) {
+            throw new IOException(file + ": unsupported log version " + header.getShort(4));
+        }
+    }
+
+    // Append every sample in a batch
+    public synchronized void write(SampleBatch batch) throws IOException
+    {
+        for (int s = 0; s < batch.size; s++) {
+            if (buf.remaining() < RECORD_SIZE) {
+                flush();
+            }
+            buf.putInt((int)batch.timestamp);
+            buf.put((byte)batch.id[s]);
+            buf.putShort(batch.rate[3*s]);
+            buf.putShort(batch.rate[3*s+1]);
+            buf.putShort(batch.rate[3*s+2]);
+            buf.putShort(batch.accel[3*s]);
+            buf.putShort(batch.accel[3*s+1]);
+            buf.putShort(batch.accel[3*s+2]);
+            buf.putShort((short)batch.temp[s]);
+        }
+        records += batch.size;
+
+        long now = System.currentTimeMillis();
+        if (now - last_sync >= FSYNC_MILLIS) {
+            flush();
+            channel.force(false);
+            last_sync = now;
+        }
+    }
+
+    // Write out buffered records (without syncing)
+    public synchronized void flush() throws IOException
+    {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+    }
+
+    // Write out and sync everything, then close the file
+    public synchronized void close() throws IOException
+    {
+        if (channel.isOpen()) {
+            flush();
+            channel.force(true);
+            channel.close();
+        }
+    }
+
+    // Close the log when the program exits (e.g. on Ctrl-C)
+    public void closeOnExit()
+    {
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run()
+            {
+                try {
+                    close();
+                }
+                catch (Exception e) { return; }
+            }
+        });
+    }
+
+    // Write every frame from source to log until the source runs out
+    public static void record(SampleSource source, RawLog log) throws IOException
+    {
+        while (!source.isFinished()) {
+            SampleBatch frame;
+            try {
+                frame = source.poll(1, TimeUnit.SECONDS);
+            }
+            catch (Exception e) { return; }
+            if (frame != null) {
+                log.write(frame);
+                source.release(frame);
+            }
+        }
+        log.close();
+    }
+
+    // Number of records in the log
+    public synchronized long getRecordCount()
+    {
+        return records;
+    }
+}
@@ -0,0 +1,125 @@
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+// Streams samples back out of a RawLog file
+// Consecutive records with the same timestamp are returned together as one
+// batch, like the frames they were recorded from.
+// Run as a program to convert a log to CSV: RawLogReader <log> [csv]
+public class RawLogReader
+{
+    // Records read from the file at a time
+    static final int READ_RECORDS = 4096;
+
+    private FileChannel channel;
+    private ByteBuffer buf = ByteBuffer.allocateDirect(READ_RECORDS*RawLog.RECORD_SIZE);
+    private IMU.IMUType type;
+    private int num_sensors;
+
+    public RawLogReader(String file) throws IOException
+    {
+        channel = new FileInputStream(file).getChannel();
+
+        ByteBuffer header = ByteBuffer.allocate(RawLog.HEADER_SIZE);
+        while (header.hasRemaining() && channel.read(header) >= 0) {
+            ;
+        }
+        header.flip();
+        RawLog.checkHeader(header, file);
+        type = IMU.IMUType.values()[header.get(8)];
+        num_sensors = header.get(9) & 0xFF;
+
+        // Start with an empty buffer
+        buf.flip();
+    }
+
+    public IMU.IMUType getSensorType()
+    {
+        return type;
+    }
+
+    public int getNumSensors()
+    {
+        return num_sensors;
+    }
+
+    // Number of records in the file
+    public long getRecordCount() throws IOException
+    {
+        return (channel.size() - RawLog.HEADER_SIZE)/RawLog.RECORD_SIZE;
+    }
+
+    // Fill batch with the next frame's samples
+    // Returns false at the end of the log
+    public boolean read(SampleBatch batch) throws IOException
+    {
+        batch.clear();
+        while (!batch.isFull()) {
+            if (buf.remaining() < RawLog.RECORD_SIZE && !fill()) {
+                break;
+            }
+            int p = buf.position();
+            long time = buf.getInt(p);
+            if (batch.size > 0 && time != batch.timestamp) {
+                break;
+            }
+            int t = buf.getShort(p + 17);
+            if (type == IMU.IMUType.MPU6050) {
+                t &= 0xFFFF;
+            }
+            batch.timestamp = time;
+            batch.add(buf.get(p + 4) & 0xFF,
+                      buf.getShort(p + 5), buf.getShort(p + 7), buf.getShort(p + 9),
+                      buf.getShort(p + 11), buf.getShort(p + 13), buf.getShort(p + 15),
+                      t);
+            buf.position(p + RawLog.RECORD_SIZE);
+        }
+        return !batch.isEmpty();
+    }
+
+    // Read more of the file, returns false if no whole record is left
+    private boolean fill() throws IOException
+    {
+        buf.compact();
+        while (buf.hasRemaining() && channel.read(buf) > 0) {
+            ;
+        }
+        buf.flip();
+        return buf.remaining() >= RawLog.RECORD_SIZE;
+    }
+
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+
+    public static void main(String args[]) throws IOException
+    {
+        if (args.length < 1) {
+            System.out.println("Usage: RawLogReader <log> [csv]");
+            return;
+        }
+        RawLogReader reader = new RawLogReader(args[0]);
+        PrintWriter writer;
+        if (args.length > 1) {
+            writer = new PrintWriter(new BufferedWriter(new FileWriter(args[1])));
+        } else {
+            writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+        }
+
+        writer.println("time,id,X,Y,Z,aX,aY,aZ,temp");
+        SampleBatch batch = new SampleBatch(FrameDecoder.MAX_FRAME_SAMPLES);
+        while (reader.read(batch)) {
+            for (int s = 0; s < batch.size; s++) {
+                writer.println(batch.timestamp + "," + batch.id[s] + "," +
+                               batch.rate[3*s] + "," + batch.rate[3*s+1] + "," + batch.rate[3*s+2] + "," +
+                               batch.accel[3*s] + "," + batch.accel[3*s+1] + "," + batch.accel[3*s+2] + "," +
+                               batch.temp[s]);
+            }
+        }
+        writer.close();
+        reader.close();
+    }
+}
@@ -8,33 +8,22 @@ public class RawPrint
     public static void main(String args[]) throws IOException
     {
         RAIGDriver driver = RAIGDriver.getSingleton();
+        RAIGDriver.Subscription mpu_data = driver.subscribe(IMU.IMUType.MPU6050);
         System.out.println("MPU 0 Z Axis,MPU 1 Z Axis,MPU 2 Z Axis,MPU 3 Z Axis");
         while (true) {
-            if (!driver.lsm_data.isEmpty()) {
-            /*    long time = driver.lsm_data.getFirst().timestamp;
-                for (int i = 0; i < driver.lsm_data.getFirst().samples.size(); i++) {
-                    RAIGDriver.IMUSample lsm_samp = driver.lsm_data.getFirst().samples.get(i);
-                    System.out.println("LSM" + lsm_samp.id + ": " + 
-                            lsm_samp.rate[0] + " " +
-                            lsm_samp.rate[1] + " " +
-                            lsm_samp.rate[2] + " " +
-                            time
-                            );
-                }*/
-                driver.lsm_data.clear();
-            }
-            if (!driver.mpu_data.isEmpty()) {
-                long time = driver.mpu_data.getFirst().timestamp;
-                for (int i = 0; i < driver.mpu_data.getFirst().samples.size(); i++) {
-                    RAIGDriver.IMUSample mpu_samp = driver.mpu_data.getFirst().samples.get(i);
-                    System.out.print(mpu_samp.rate[2]);
-                    if (i+1 < driver.mpu_data.getFirst().samples.size()) {
+            SampleBatch frame = mpu_data.poll();
+            if (frame != null) {
+                long time = frame.timestamp;
+                for (int i = 0; i < frame.size; i++) {
+                    System.out.print(frame.rate[3*i+2]);
+                    if (i+1 < frame.size) {
                         System.out.print(",");
                     } else {
-                        System.out.print("," + mpu_samp.temp + "\n");
+                        System.out.print("," + frame.temp[i] + "\n");
                     }
                 }
-                driver.mpu_data.clear();
+                mpu_data.release(frame);
+                mpu_data.clear();
             }
             try {
                 Thread.sleep(200);
@@ -0,0 +1,44 @@
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+
+// Runs the MPU6050 fusion over a recording or a simulated array instead of the board
+// Usage: Replay <capture file | sim> [speed]
+// A speed of 0 processes the data as fast as possible
+public class Replay
+{
+
+    public static void main(String args[]) throws IOException
+    {
+        if (args.length < 1) {
+            System.out.println("Usage: Replay <capture file | sim> [speed]");
+            return;
+        }
+        double speed = (args.length > 1) ? Double.parseDouble(args[1]) : 1.0;
+
+        PacedSampleSource source;
+        if (args[0].equals("sim")) {
+            SimulatedSampleSource sim = new SimulatedSampleSource(4, 22, 0.01, 0);
+            // 30 seconds of data
+            sim.setMaxFrames(30000/22);
+            source = sim;
+        } else {
+            source = new ReplaySampleSource(args[0], IMU.IMUType.MPU6050);
+        }
+        source.setSpeed(speed);
+
+        IMU imu_mpu = new IMU(IMU.IMUType.MPU6050, source);
+        imu_mpu.setFusionEnabled(IMU.FUSION_KALMAN, true);
+
+        // Runs until the source is exhausted
+        long start = System.currentTimeMillis();
+        imu_mpu.run();
+        long elapsed = System.currentTimeMillis() - start;
+
+        // Only the Z axis has real conversion constants in imu.conf
+        System.out.println("Average Z heading:  " + IMU.toDegrees(imu_mpu.getAverageHeadings()[2]) + " deg");
+        System.out.println("Weighted Z heading: " + IMU.toDegrees(imu_mpu.getWAverageHeadings()[2]) + " deg");
+        System.out.println("Kalman Z heading:   " + IMU.toDegrees(imu_mpu.getFusedHeadings(IMU.FUSION_KALMAN)[2]) + " deg");
+        System.out.println("Processed in " + elapsed + " ms");
+    }
+}
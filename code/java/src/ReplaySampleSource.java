@@ -0,0 +1,70 @@
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+
+// Plays back a recording of the raw bytes sent by the RAIG board
+// (see CaptureFile) through the same decoder the serial driver uses
+public class ReplaySampleSource extends PacedSampleSource
+{
+    // Bytes read from the file at a time
+    // Small enough that one read can never decode more frames than the queues hold
+    static final int READ_SIZE = 4096;
+    static final int QUEUE_CAPACITY = 1024;
+
+    private InputStream in;
+    private byte read_buf[] = new byte[READ_SIZE];
+    private BatchQueue lsm_data = new BatchQueue(QUEUE_CAPACITY, FrameDecoder.MAX_FRAME_SAMPLES,
+                                                 SampleRing.OverflowPolicy.DROP_NEWEST);
+    private BatchQueue mpu_data = new BatchQueue(QUEUE_CAPACITY, FrameDecoder.MAX_FRAME_SAMPLES,
+                                                 SampleRing.OverflowPolicy.DROP_NEWEST);
+    private FrameDecoder decoder = new FrameDecoder(lsm_data, mpu_data);
+    // Queue of the sensor type being replayed, the other type is not decoded
+    private BatchQueue data_stream;
+
+    public ReplaySampleSource(String file, IMU.IMUType type) throws IOException
+    {
+        in = new BufferedInputStream(new FileInputStream(file));
+        switch (type)
+        {
+            case LSM330:
+                data_stream = lsm_data;
+                decoder.setSensorMask(IMU.IMUType.MPU6050, 0);
+                break;
+            case MPU6050:
+                data_stream = mpu_data;
+                decoder.setSensorMask(IMU.IMUType.LSM330, 0);
+                break;
+        }
+    }
+
+    protected SampleBatch next()
+    {
+        SampleBatch b;
+        // Decode more of the file until a frame comes out
+        while ((b = data_stream.poll()) == null) {
+            try {
+                int len = in.read(read_buf);
+                if (len < 0) {
+                    in.close();
+                    return null;
+                }
+                decoder.decode(read_buf, 0, len);
+            } catch (IOException e) {
+                System.err.println(e.toString());
+                return null;
+            }
+        }
+        return b;
+    }
+
+    protected void recycle(SampleBatch b)
+    {
+        data_stream.release(b);
+    }
+
+    // Number of frames decoded so far
+    public long getFrameCount()
+    {
+        return decoder.getFrameCount();
+    }
+}
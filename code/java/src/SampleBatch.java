@@ -0,0 +1,93 @@
+import java.util.*;
+import java.lang.*;
+
+// Rate, acceleration, and temperature data from several sensors
+// at a single point in time
+// Samples are stored column-wise in primitive arrays so that batches can be
+// filled in place and reused without allocating. Sample s has
+// sensor ID id[s], rate rate[3*s] to rate[3*s+2] (XYZ), acceleration
+// accel[3*s] to accel[3*s+2] (XYZ), and temperature temp[s].
+public class SampleBatch
+{
+    // Unprocessed sensor data
+    public long timestamp;
+    // Board the samples came from (see DriverRegistry)
+    public int board;
+    // System.nanoTime() when the end of the frame was received from the port
+    // and when the frame was decoded and queued, 0 if unknown
+    public long rx_nanos;
+    public long host_nanos;
+    // Number of samples in the batch
+    public int size;
+    // Sensor IDs
+    public final short id[];
+    public final short rate[];
+    public final short accel[];
+    public final int temp[];
+
+    public SampleBatch(int capacity)
+    {
+        id = new short[capacity];
+        rate = new short[3*capacity];
+        accel = new short[3*capacity];
+        temp = new int[capacity];
+    }
+
+    // Maximum number of samples
+    public int capacity()
+    {
+        return id.length;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public boolean isFull()
+    {
+        return size == id.length;
+    }
+
+    // Remove all samples
+    public void clear()
+    {
+        size = 0;
+        timestamp = 0;
+        board = 0;
+        rx_nanos = 0;
+        host_nanos = 0;
+    }
+
+    // Append a sample, returns its index
+    // Caller must check isFull() first
+    public int add(int sensor_id, short x, short y, short z,
+                   short ax, short ay, short az, int t)
+    {
+        int s = size++;
+        id[s] = (short)sensor_id;
+        rate[3*s] = x;
+        rate[3*s+1] = y;
+        rate[3*s+2] = z;
+        accel[3*s] = ax;
+        accel[3*s+1] = ay;
+        accel[3*s+2] = az;
+        temp[s] = t;
+        return s;
+    }
+
+    // Make this batch a copy of other (samples past capacity are left out)
+    public void copyFrom(SampleBatch other)
+    {
+        int n = Math.min(other.size, id.length);
+        timestamp = other.timestamp;
+        board = other.board;
+        rx_nanos = other.rx_nanos;
+        host_nanos = other.host_nanos;
+        size = n;
+        System.arraycopy(other.id, 0, id, 0, n);
+        System.arraycopy(other.rate, 0, rate, 0, 3*n);
+        System.arraycopy(other.accel, 0, accel, 0, 3*n);
+        System.arraycopy(other.temp, 0, temp, 0, n);
+    }
+}
@@ -0,0 +1,363 @@
+import java.util.*;
+import java.lang.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Ring of SampleBatches from one producer thread to any number of consumers,
+// each of which sees every batch
+// The producer fills the batches in the ring's slots in place and publishes
+// them by advancing the cursor. Every consumer has its own sequence number
+// and reads the slots themselves, so adding a consumer adds no copying and
+// consumers never slow each other down. When the slowest consumer is a whole
+// ring behind, the producer waits for it (BLOCK), pushes it ahead, dropping
+// its oldest batch (DROP_OLDEST), or drops the new batch (DROP_NEWEST).
+//
+// A consumer holds the slot it polled until release(), marking its sequence
+// number HELD with a CAS, and release() moves the sequence on. The producer
+// only moves a consumer on with a CAS before overwriting a slot, and never
+// past a held slot: under DROP_OLDEST it waits up to MAX_HELD_WAIT_NANOS for
+// the release, then drops the new batch instead. So a consumer never reads
+// a batch the producer is writing. Consumers that
+// only want some sensors get a filtered copy of each batch in their own
+// batch instead, like SampleRing. Nothing is allocated once the bus is built.
+public class SampleBus implements BatchSink
+{
+    // Set in a consumer's sequence number while it holds that slot
+    static final long HELD = 1L << 62;
+    // Longest the producer waits for a held slot under DROP_OLDEST
+    static final long MAX_HELD_WAIT_NANOS = 1000000;
+
+    private final SampleBatch slots[];
+    private final int mask;
+    private final int batch_capacity;
+    private volatile SampleRing.OverflowPolicy policy;
+
+    // Sequence number of the next batch to be published
+    private final AtomicLong cursor = new AtomicLong();
+    // Replaced as a whole when a consumer subscribes or closes
+    private volatile Consumer consumers[] = new Consumer[0];
+    // Batch filled while the bus was full (DROP_NEWEST)
+    private final SampleBatch spare;
+    // Batches dropped because the bus was full (DROP_NEWEST, or DROP_OLDEST
+    // with the oldest slot held too long)
+    private final AtomicLong dropped = new AtomicLong();
+
+    // One reader of the bus
+    // A batch from poll() is a slot of the ring, read-only and valid until
+    // release() or the next poll(), which releases it. Consumers of some
+    // sensors only get their own filtered copy instead, valid until their
+    // next poll(). Like a BatchQueue, each consumer is read by a single thread.
+    public class Consumer implements SampleSource
+    {
+        // Sequence number of the next batch to read, with HELD set while
+        // that batch is held
+        private final AtomicLong next;
+        // Bit id set for every sensor id to copy
+        private final int sensors;
+        // Filtered copy, only for consumers of some sensors
+        private final SampleBatch batch;
+        private volatile SampleRing.WaitStrategy wait_strategy = SampleRing.WaitStrategy.BLOCKING;
+        private volatile Thread waiter = null;
+        // Batches the producer pushed this consumer past
+        private final AtomicLong dropped = new AtomicLong();
+
+        private Consumer(int sensors)
+        {
+            this.sensors = sensors;
+            batch = (sensors == FrameDecoder.ALL_SENSORS) ? null : new SampleBatch(batch_capacity);
+            next = new AtomicLong(cursor.get());
+        }
+
+        // Take the next batch with samples of this consumer's sensors, or
+        // null if there is none
+        public SampleBatch poll()
+        {
+            releaseHeld();
+            while (true) {
+                long s = next.get();
+                if (s >= cursor.get()) {
+                    return null;
+                }
+                if (batch == null) {
+                    // Fails only if the producer pushed us past this batch meanwhile
+                    if (next.compareAndSet(s, s | HELD)) {
+                        return slots[(int)s & mask];
+                    }
+                    continue;
+                }
+                copy(slots[(int)s & mask]);
+                if (next.compareAndSet(s, s + 1) && batch.size > 0) {
+                    return batch;
+                }
+            }
+        }
+
+        public SampleBatch poll(long timeout, TimeUnit unit) throws InterruptedException
+        {
+            SampleBatch b = poll();
+            if (b != null) {
+                return b;
+            }
+
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (true) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                if (wait_strategy == SampleRing.WaitStrategy.BLOCKING) {
+                    waiter = Thread.currentThread();
+                    // Check again after announcing ourselves, in case the
+                    // producer published before it could see us
+                    if (isEmpty()) {
+                        LockSupport.parkNanos(this, remaining);
+                    }
+                    waiter = null;
+                }
+                b = poll();
+                if (b != null) {
+                    return b;
+                }
+            }
+        }
+
+        private void copy(SampleBatch from)
+        {
+            batch.clear();
+            batch.timestamp = from.timestamp;
+            batch.board = from.board;
+            batch.rx_nanos = from.rx_nanos;
+            batch.host_nanos = from.host_nanos;
+            for (int i = 0; i < from.size && i < batch_capacity; i++) {
+                int id = from.id[i];
+                if (id >= 0 && id < FrameDecoder.MAX_FRAME_SAMPLES && (sensors >>> id & 1) != 0) {
+                    batch.add(id,
+                              from.rate[3*i], from.rate[3*i+1], from.rate[3*i+2],
+                              from.accel[3*i], from.accel[3*i+1], from.accel[3*i+2],
+                              from.temp[i]);
+                }
+            }
+        }
+
+        public void release(SampleBatch b)
+        {
+            long s = next.get();
+            if ((s & HELD) != 0 && b == slots[(int)s & mask]) {
+                next.set((s & ~HELD) + 1);
+            }
+        }
+
+        // Let the producer have the held slot
+        private void releaseHeld()
+        {
+            long s = next.get();
+            if ((s & HELD) != 0) {
+                next.set((s & ~HELD) + 1);
+            }
+        }
+
+        // Skip all published batches
+        public void clear()
+        {
+            releaseHeld();
+            long c = cursor.get();
+            long s;
+            while ((s = next.get()) < c && !next.compareAndSet(s, c)) {
+                ;
+            }
+        }
+
+        public boolean isEmpty()
+        {
+            return (next.get() & ~HELD) >= cursor.get();
+        }
+
+        // Number of published batches not read yet, including a held one
+        public int size()
+        {
+            return (int)Math.max(0, Math.min(cursor.get() - (next.get() & ~HELD), slots.length));
+        }
+
+        public long getDropped()
+        {
+            return dropped.get();
+        }
+
+        public void setWaitStrategy(SampleRing.WaitStrategy w)
+        {
+            wait_strategy = w;
+        }
+
+        // A live bus can always receive more data
+        public boolean isFinished()
+        {
+            return false;
+        }
+
+        // Stop reading, the producer no longer waits for this consumer
+        public void close()
+        {
+            removeConsumer(this);
+        }
+    }
+
+    // Capacity is rounded up to a power of 2
+    public SampleBus(int capacity, int batch_cap, SampleRing.OverflowPolicy p)
+    {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        slots = new SampleBatch[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new SampleBatch(batch_cap);
+        }
+        mask = size - 1;
+        batch_capacity = batch_cap;
+        spare = new SampleBatch(batch_cap);
+        policy = p;
+    }
+
+    // Start reading batches from the next one published
+    public Consumer subscribe()
+    {
+        return subscribe(FrameDecoder.ALL_SENSORS);
+    }
+
+    // Only the samples of sensors whose id bits are set in sensors are
+    // copied, and batches without any are skipped
+    // Every other consumer reads the ring's slots without copying.
+    public synchronized Consumer subscribe(int sensors)
+    {
+        Consumer c = new Consumer(sensors);
+        Consumer list[] = Arrays.copyOf(consumers, consumers.length + 1);
+        list[list.length - 1] = c;
+        consumers = list;
+        return c;
+    }
+
+    private synchronized void removeConsumer(Consumer c)
+    {
+        List<Consumer> list = new ArrayList<Consumer>(Arrays.asList(consumers));
+        if (list.remove(c)) {
+            consumers = list.toArray(new Consumer[list.size()]);
+        }
+    }
+
+    //
+    //
+    // Producer side
+    //
+    //
+
+    // Get the batch to fill for the next publish() (producer thread only)
+    public SampleBatch acquire()
+    {
+        long n = cursor.get();
+        SampleBatch b = reserve(n) ? slots[(int)n & mask] : spare;
+        b.clear();
+        return b;
+    }
+
+    // Publish the batch from acquire() to every consumer
+    public void publish(SampleBatch b)
+    {
+        long n = cursor.get();
+        SampleBatch slot = slots[(int)n & mask];
+        if (b != slot) {
+            // Filled while the bus was full, see if there is room now
+            if (!reserve(n)) {
+                dropped.incrementAndGet();
+                return;
+            }
+            slot.copyFrom(b);
+        }
+        // Full volatile store, so a consumer that is about to park either
+        // sees the new batch or is seen as a waiter below
+        cursor.set(n + 1);
+        for (Consumer c : consumers) {
+            Thread w = c.waiter;
+            if (w != null) {
+                LockSupport.unpark(w);
+            }
+        }
+    }
+
+    // Make sure no consumer still has to read the slot of sequence n
+    // Returns false if the batch must be dropped instead
+    private boolean reserve(long n)
+    {
+        long wrap = n - slots.length;
+        long held_deadline = 0;
+        for (Consumer c : consumers) {
+            long s;
+            while (((s = c.next.get()) & ~HELD) <= wrap) {
+                switch (policy) {
+                    case DROP_NEWEST:
+                        return false;
+                    case DROP_OLDEST:
+                        if ((s & HELD) != 0) {
+                            // Still being read, give the consumer a moment
+                            // to release it, then drop the new batch instead
+                            long now = System.nanoTime();
+                            if (held_deadline == 0) {
+                                held_deadline = now + MAX_HELD_WAIT_NANOS;
+                            } else if (now - held_deadline >= 0) {
+                                return false;
+                            }
+                            LockSupport.parkNanos(SampleRing.BLOCK_PARK_NANOS);
+                            break;
+                        }
+                        // Race the consumer for its oldest batch
+                        if (c.next.compareAndSet(s, s + 1)) {
+                            c.dropped.incrementAndGet();
+                        }
+                        break;
+                    case BLOCK:
+                        LockSupport.parkNanos(SampleRing.BLOCK_PARK_NANOS);
+                        break;
+                }
+            }
+        }
+        return true;
+    }
+
+    public int capacity()
+    {
+        return slots.length;
+    }
+
+    public synchronized int getNumConsumers()
+    {
+        return consumers.length;
+    }
+
+    // Batches not read yet by the slowest consumer
+    public int size()
+    {
+        int max = 0;
+        for (Consumer c : consumers) {
+            max = Math.max(max, c.size());
+        }
+        return max;
+    }
+
+    // Batches lost to overflow, by any consumer
+    public long getDropped()
+    {
+        long n = dropped.get();
+        for (Consumer c : consumers) {
+            n += c.getDropped();
+        }
+        return n;
+    }
+
+    public void setOverflowPolicy(SampleRing.OverflowPolicy p)
+    {
+        policy = p;
+    }
+}
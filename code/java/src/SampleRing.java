@@ -0,0 +1,210 @@
+import java.util.*;
+import java.lang.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Bounded queue for passing data from one producer thread to one consumer thread
+// Slots are allocated up front, so adding and removing elements never allocates
+// and the queue never grows past its capacity. What happens when the producer
+// finds the queue full is set by the OverflowPolicy, and how a consumer waits
+// for data is set by the WaitStrategy.
+public class SampleRing<T>
+{
+    // What the producer does when the ring is full
+    public enum OverflowPolicy
+    {
+        // Wait for the consumer to make room
+        BLOCK,
+        // Throw away the oldest queued element to make room
+        DROP_OLDEST,
+        // Throw away the element being added
+        DROP_NEWEST
+    }
+
+    // How the consumer waits in poll(timeout, unit) when the ring is empty
+    public enum WaitStrategy
+    {
+        // Park the consumer thread until the producer adds an element
+        BLOCKING,
+        // Keep checking the ring - lowest latency, but keeps a core busy
+        BUSY_SPIN
+    }
+
+    // How long a blocked producer sleeps before checking for room again
+    static final long BLOCK_PARK_NANOS = 50000;
+
+    private final Object slots[];
+    private final int mask;
+    private volatile OverflowPolicy policy;
+    private volatile WaitStrategy wait_strategy = WaitStrategy.BLOCKING;
+    // Consumer thread parked waiting for data, if any
+    private volatile Thread waiter = null;
+
+    // Sequence number of the next element to be removed
+    private final AtomicLong head = new AtomicLong();
+    // Sequence number of the next element to be added
+    private final AtomicLong tail = new AtomicLong();
+    // Number of elements thrown away because the ring was full
+    private final AtomicLong dropped = new AtomicLong();
+
+    // Capacity is rounded up to a power of 2
+    public SampleRing(int capacity, OverflowPolicy p)
+    {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        slots = new Object[size];
+        mask = size - 1;
+        policy = p;
+    }
+
+    // Add an element (producer thread only)
+    // Returns null if nothing was lost, otherwise the element that was dropped:
+    // the oldest queued one for DROP_OLDEST, or item itself for DROP_NEWEST.
+    // The caller may reuse the returned element.
+    @SuppressWarnings("unchecked")
+    public T offer(T item)
+    {
+        T lost = null;
+        long t = tail.get();
+        while (true) {
+            long h = head.get();
+            if (t - h < slots.length) {
+                break;
+            }
+            switch (policy) {
+                case DROP_NEWEST:
+                    dropped.incrementAndGet();
+                    return item;
+                case DROP_OLDEST:
+                    // Race the consumer for the oldest element
+                    T oldest = (T)slots[(int)h & mask];
+                    if (head.compareAndSet(h, h + 1)) {
+                        dropped.incrementAndGet();
+                        lost = oldest;
+                    }
+                    break;
+                case BLOCK:
+                    LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                    break;
+            }
+        }
+        slots[(int)t & mask] = item;
+        // Full volatile store, so a consumer that is about to park either
+        // sees the new element or is seen as the waiter below
+        tail.set(t + 1);
+        Thread w = waiter;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+        return lost;
+    }
+
+    // Remove and return the oldest element, or null if empty (consumer thread only)
+    // Slots are not cleared on removal, so up to capacity stale references
+    // stay reachable from the ring.
+    @SuppressWarnings("unchecked")
+    public T poll()
+    {
+        while (true) {
+            long h = head.get();
+            if (h == tail.get()) {
+                return null;
+            }
+            T item = (T)slots[(int)h & mask];
+            // Fails only if the producer dropped this element in the meantime
+            if (head.compareAndSet(h, h + 1)) {
+                return item;
+            }
+        }
+    }
+
+    // Remove and return the oldest element, waiting up to timeout for one to
+    // be added (consumer thread only)
+    // Returns null if nothing arrived in time
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        T item = poll();
+        if (item != null) {
+            return item;
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            if (wait_strategy == WaitStrategy.BLOCKING) {
+                waiter = Thread.currentThread();
+                // Check again after announcing ourselves, in case the
+                // producer added an element before it could see us
+                if (isEmpty()) {
+                    LockSupport.parkNanos(this, remaining);
+                }
+                waiter = null;
+            }
+            item = poll();
+            if (item != null) {
+                return item;
+            }
+        }
+    }
+
+    // Remove all queued elements (consumer thread only)
+    public void clear()
+    {
+        while (poll() != null) {
+            ;
+        }
+    }
+
+    public boolean isEmpty()
+    {
+        return head.get() == tail.get();
+    }
+
+    // Number of queued elements
+    public int size()
+    {
+        long h = head.get();
+        long t = tail.get();
+        return (int)Math.max(0, Math.min(t - h, slots.length));
+    }
+
+    public int capacity()
+    {
+        return slots.length;
+    }
+
+    // Total number of elements lost to overflow
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    public OverflowPolicy getOverflowPolicy()
+    {
+        return policy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy p)
+    {
+        policy = p;
+    }
+
+    public WaitStrategy getWaitStrategy()
+    {
+        return wait_strategy;
+    }
+
+    public void setWaitStrategy(WaitStrategy w)
+    {
+        wait_strategy = w;
+    }
+}
@@ -0,0 +1,24 @@
+import java.util.*;
+import java.lang.*;
+import java.util.concurrent.TimeUnit;
+
+// A stream of SampleBatches from one type of sensor
+// IMU reads all of its data through this interface, so it can run on the
+// RAIG board (a RAIGDriver.subscribe subscription to one of its buses), a
+// recording (ReplaySampleSource), or simulated sensors (SimulatedSampleSource).
+public interface SampleSource
+{
+    // Take the next batch, waiting up to timeout for one
+    // Returns null if none arrived in time. Hand the batch back with
+    // release() when done with it.
+    public SampleBatch poll(long timeout, TimeUnit unit) throws InterruptedException;
+
+    // Return a batch taken with poll()
+    public void release(SampleBatch b);
+
+    // Set how poll() waits for data
+    public void setWaitStrategy(SampleRing.WaitStrategy w);
+
+    // True once the source has no more data and never will
+    public boolean isFinished();
+}
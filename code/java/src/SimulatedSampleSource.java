@@ -0,0 +1,144 @@
+import java.util.*;
+import java.lang.*;
+
+// Synthetic gyro array that produces raw sensor counts like the RAIG board
+// Each sensor's rate output is
+//   true rate + constant bias + bias instability + temperature drift + white noise
+// converted to counts with rate_scale. Bias instability is a first order
+// Gauss-Markov process, and temperature drift is linear in the difference
+// from the starting temperature (the same model IMUData corrects with tSen).
+// All sensors share the same accelerometer reading (gravity on Z) and
+// temperature, which ramps at temp_drift counts per second.
+public class SimulatedSampleSource extends PacedSampleSource
+{
+    // Error model for a single sensor, all rates in rad/sec
+    public static class SensorModel
+    {
+        // Constant zero-rate bias of each axis
+        public double bias[] = new double[3];
+        // White noise density (rad/sec/sqrt(Hz))
+        public double noise_density = 1e-4;
+        // Standard deviation and correlation time (sec) of the bias instability
+        public double bias_instability = 1e-4;
+        public double correlation_time = 100.0;
+        // Bias change per temperature count of each axis
+        public double temp_sensitivity[] = new double[3];
+    }
+
+    // Raw counts per rad/sec (MPU6050 at +-250 deg/sec)
+    public double rate_scale = 1.0/0.00013089969;
+    // Raw accelerometer counts for 1 g (MPU6050 at +-2 g)
+    public double gravity_counts = 16384.0;
+    // Accelerometer white noise (counts)
+    public double accel_noise = 20.0;
+    // Temperature at the start (raw counts) and its drift (counts/sec)
+    public double start_temp = 0.0;
+    public double temp_drift = 0.0;
+    // True rotation rate of the rig (rad/sec)
+    public double true_rate[] = new double[3];
+
+    private SensorModel models[];
+    private Random rand;
+    private long period_millis;
+
+    // Time and temperature of the last batch
+    private long time_millis = 0;
+    private double temp;
+    // Current bias instability state of each sensor and axis
+    private double gm_bias[][];
+
+    // Batch handed out to the consumer
+    private SampleBatch batch;
+    private long frames = 0;
+    private long max_frames = -1;
+
+    // num_sensors sensors with default error models and a random
+    // constant bias of up to max_bias rad/sec on each axis
+    public SimulatedSampleSource(int num_sensors, long frame_millis, double max_bias, long seed)
+    {
+        rand = new Random(seed);
+        models = new SensorModel[num_sensors];
+        for (int i = 0; i < num_sensors; i++) {
+            models[i] = new SensorModel();
+            for (int n = 0; n < 3; n++) {
+                models[i].bias[n] = max_bias*(2.0*rand.nextDouble() - 1.0);
+            }
+        }
+        period_millis = frame_millis;
+        gm_bias = new double[num_sensors][3];
+        batch = new SampleBatch(num_sensors);
+    }
+
+    // Error model of a sensor, can be changed before the simulation starts
+    public SensorModel getModel(int sensor)
+    {
+        return models[sensor];
+    }
+
+    public int getNumSensors()
+    {
+        return models.length;
+    }
+
+    // Stop after this many frames (negative to run forever)
+    public void setMaxFrames(long n)
+    {
+        max_frames = n;
+    }
+
+    protected SampleBatch next()
+    {
+        if (max_frames >= 0 && frames >= max_frames) {
+            return null;
+        }
+        frames++;
+
+        double dt = period_millis/1000.0;
+        time_millis += period_millis;
+        temp = start_temp + temp_drift*time_millis/1000.0;
+
+        batch.clear();
+        batch.timestamp = time_millis;
+        for (int i = 0; i < models.length; i++) {
+            SensorModel m = models[i];
+            // Discrete white noise standard deviation at this sample rate
+            double sigma = m.noise_density/Math.sqrt(dt);
+            // Gauss-Markov update keeps the bias instability at its set deviation
+            double beta = Math.exp(-dt/m.correlation_time);
+            double gm_sigma = m.bias_instability*Math.sqrt(1.0 - beta*beta);
+
+            int s = batch.add(i, (short)0, (short)0, (short)0,
+                              counts(accel_noise*rand.nextGaussian()),
+                              counts(accel_noise*rand.nextGaussian()),
+                              counts(gravity_counts + accel_noise*rand.nextGaussian()),
+                              (int)Math.round(temp));
+            for (int n = 0; n < 3; n++) {
+                gm_bias[i][n] = beta*gm_bias[i][n] + gm_sigma*rand.nextGaussian();
+                double rate = true_rate[n]
+                            + m.bias[n]
+                            + gm_bias[i][n]
+                            + m.temp_sensitivity[n]*(temp - start_temp)
+                            + sigma*rand.nextGaussian();
+                batch.rate[3*s+n] = counts(rate*rate_scale);
+            }
+        }
+        return batch;
+    }
+
+    // The single batch is reused for the next frame
+    protected void recycle(SampleBatch b)
+    {
+    }
+
+    // Round to raw counts, saturating like the sensor does
+    static short counts(double v)
+    {
+        long c = Math.round(v);
+        if (c > Short.MAX_VALUE) {
+            return Short.MAX_VALUE;
+        } else if (c < Short.MIN_VALUE) {
+            return Short.MIN_VALUE;
+        }
+        return (short)c;
+    }
+}
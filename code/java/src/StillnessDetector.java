@@ -0,0 +1,147 @@
+import java.util.*;
+import java.lang.*;
+
+// Streaming detector of a still rig from its acceleration and rotation rate
+// Exponentially weighted averages over TIME_CONSTANT seconds are kept of the
+// acceleration, of its squared deviation from that average and of the
+// squared rate, so an update is O(1) with no history. The rig becomes
+// still once the acceleration's standard deviation and the rms rate have
+// stayed below their thresholds for HOLD_SECONDS. It stops being still on
+// the first update whose own acceleration deviation or rate is above
+// MOTION_FACTOR times a threshold, or when the averages go above them.
+public class StillnessDetector
+{
+    static final int NUM_AXES = IMU.NUM_AXES;
+    // Averaging time of the statistics (sec)
+    static final double TIME_CONSTANT = 0.5;
+    // Time the statistics must stay below the thresholds (sec)
+    static final double HOLD_SECONDS = 1.0;
+    // Standard deviation of the acceleration (m/s^2) and rms rate (rad/sec)
+    // of a still rig, above the noise of the averaged sensors and what is
+    // left of the bias after a warm start, until setRateNoise() has the
+    // measured noise. Turns slower than the rate threshold look still.
+    static final double DEFAULT_ACCEL_STD = 0.05;
+    static final double DEFAULT_RATE_RMS = 0.005;
+    // Rate threshold relative to the measured rms noise, and the lowest one
+    // (rad/sec), which leaves room for the bias to drift between updates
+    static final double NOISE_FACTOR = 4.0;
+    static final double MIN_RATE_RMS = 0.001;
+    // Single updates this many times over a threshold are motion
+    static final double MOTION_FACTOR = 4.0;
+
+    private volatile double accel_var_limit = DEFAULT_ACCEL_STD*DEFAULT_ACCEL_STD;
+    private volatile double rate_sq_limit = DEFAULT_RATE_RMS*DEFAULT_RATE_RMS;
+    // Bit i set for every rate axis i that is checked
+    private volatile int rate_axes = (1 << NUM_AXES) - 1;
+
+    private final double accel_mean[] = new double[NUM_AXES];
+    private double accel_var = 0.0;
+    private double rate_sq = 0.0;
+    // Time the statistics have been averaged over, up to a few TIME_CONSTANTs
+    private double age = 0.0;
+    // Time below the thresholds
+    private double quiet_time = 0.0;
+    private volatile boolean still = false;
+    private long still_periods = 0;
+
+    // Add the acceleration (m/s^2) and rate (rad/sec) of the rig dt seconds
+    // after the previous ones, returns whether it is still
+    public boolean update(double accel[], double rate[], double dt)
+    {
+        if (dt <= 0.0) {
+            return still;
+        }
+        int axes = rate_axes;
+        double dev = 0.0;
+        double r = 0.0;
+        for (int i = 0; i < NUM_AXES; i++) {
+            double d = accel[i] - accel_mean[i];
+            dev += d*d;
+            if ((axes >>> i & 1) != 0) {
+                r += rate[i]*rate[i];
+            }
+        }
+
+        // Until the averages have some history, weigh samples equally
+        age += dt;
+        double w = (age < TIME_CONSTANT) ? dt/age : 1.0 - Math.exp(-dt/TIME_CONSTANT);
+        for (int i = 0; i < NUM_AXES; i++) {
+            accel_mean[i] += w*(accel[i] - accel_mean[i]);
+        }
+        accel_var += w*((1.0 - w)*dev - accel_var);
+        rate_sq += w*(r - rate_sq);
+        age = Math.min(age, 4*TIME_CONSTANT);
+
+        double f2 = MOTION_FACTOR*MOTION_FACTOR;
+        boolean motion = dev > f2*accel_var_limit || r > f2*rate_sq_limit;
+        if (motion || accel_var > accel_var_limit || rate_sq > rate_sq_limit) {
+            quiet_time = 0.0;
+            still = false;
+        } else {
+            quiet_time += dt;
+            if (!still && quiet_time >= HOLD_SECONDS) {
+                still = true;
+                still_periods++;
+            }
+        }
+        return still;
+    }
+
+    public boolean isStill()
+    {
+        return still;
+    }
+
+    // Number of times the rig became still
+    public long getStillPeriods()
+    {
+        return still_periods;
+    }
+
+    // Thresholds of a still rig
+    public void setThresholds(double accel_std, double rate_rms)
+    {
+        accel_var_limit = accel_std*accel_std;
+        rate_sq_limit = rate_rms*rate_rms;
+    }
+
+    // Set the rate threshold from the mean square rate (rad/sec)^2 of each
+    // axis of the still rig, as measured by IMU.calculatePSD, to NOISE_FACTOR
+    // times the rms of the noisiest checked axis
+    public void setRateNoise(double mean_square[])
+    {
+        int axes = rate_axes;
+        double ms = 0.0;
+        for (int i = 0; i < NUM_AXES; i++) {
+            if ((axes >>> i & 1) != 0) {
+                ms = Math.max(ms, mean_square[i]);
+            }
+        }
+        double rms = Math.max(NOISE_FACTOR*Math.sqrt(ms), MIN_RATE_RMS);
+        rate_sq_limit = rms*rms;
+    }
+
+    // Rms rate (rad/sec) below which the rig can be still
+    public double getRateThreshold()
+    {
+        return Math.sqrt(rate_sq_limit);
+    }
+
+    // Only check the rate axes whose bits are set, e.g. when the others have
+    // no real scale in imu.conf
+    public void setRateAxes(int axes)
+    {
+        rate_axes = axes;
+    }
+
+    // Forget the history, the rig is not still until HOLD_SECONDS from now
+    public void reset()
+    {
+        Arrays.fill(accel_mean, 0.0);
+        accel_var = 0.0;
+        rate_sq = 0.0;
+        age = 0.0;
+        quiet_time = 0.0;
+        still = false;
+    }
+}
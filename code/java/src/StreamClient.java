@@ -0,0 +1,124 @@
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+// Prints the frames streamed by a StreamServer, and reads its wire format
+// Every line has the board timestamp, the Z heading of each fusion algorithm
+// (deg) and the number of frames missed since the previous line.
+// Usage: StreamClient [port] [-udp]
+public class StreamClient
+{
+    // One decoded message
+    public static class Frame
+    {
+        public long timestamp;
+        public long frame;
+        public double attitude[] = new double[4];
+        public double average_accels[] = new double[IMU.NUM_AXES];
+        public double headings[][] = new double[0][];
+        public double rates[][] = new double[0][];
+        public double fused_headings[][] = new double[0][];
+        public double fused_rates[][] = new double[0][];
+    }
+
+    // Decode the message in b, which starts after its length field
+    // The arrays of f are replaced when the numbers of sensors or fusions change
+    public static void decode(ByteBuffer b, Frame f) throws IOException
+    {
+        if (b.get() != StreamServer.MSG_FRAME || b.get() != StreamServer.VERSION) {
+            throw new IOException("Unknown message");
+        }
+        f.timestamp = b.getLong();
+        f.frame = b.getLong();
+        int n = b.get() & 0xff;
+        int nf = b.get() & 0xff;
+        if (f.headings.length != n) {
+            f.headings = new double[n][IMU.NUM_AXES];
+            f.rates = new double[n][IMU.NUM_AXES];
+        }
+        if (f.fused_headings.length != nf) {
+            f.fused_headings = new double[nf][IMU.NUM_AXES];
+            f.fused_rates = new double[nf][IMU.NUM_AXES];
+        }
+        getAxes(b, f.attitude, 4);
+        getAxes(b, f.average_accels, IMU.NUM_AXES);
+        for (int k = 0; k < n; k++) {
+            getAxes(b, f.headings[k], IMU.NUM_AXES);
+            getAxes(b, f.rates[k], IMU.NUM_AXES);
+        }
+        for (int k = 0; k < nf; k++) {
+            getAxes(b, f.fused_headings[k], IMU.NUM_AXES);
+            getAxes(b, f.fused_rates[k], IMU.NUM_AXES);
+        }
+    }
+
+    private static void getAxes(ByteBuffer b, double v[], int count)
+    {
+        for (int n = 0; n < count; n++) {
+            v[n] = b.getFloat();
+        }
+    }
+
+    public static void main(String args[]) throws IOException
+    {
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : StreamServer.DEFAULT_PORT;
+        boolean use_udp = args.length > 1 && args[1].equals("-udp");
+        InetSocketAddress server = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+
+        Frame f = new Frame();
+        long last = -1;
+        ByteBuffer b = ByteBuffer.allocate(65536);
+        if (use_udp) {
+            DatagramSocket socket = new DatagramSocket();
+            DatagramPacket subscribe = new DatagramPacket(new byte[] {0}, 1, server);
+            DatagramPacket packet = new DatagramPacket(b.array(), b.capacity());
+            // Stay subscribed, the server forgets clients it has not heard from
+            socket.setSoTimeout((int)StreamServer.UDP_TIMEOUT_MILLIS/2);
+            socket.send(subscribe);
+            long subscribed = System.currentTimeMillis();
+            while (true) {
+                if (System.currentTimeMillis() - subscribed > StreamServer.UDP_TIMEOUT_MILLIS/2) {
+                    socket.send(subscribe);
+                    subscribed = System.currentTimeMillis();
+                }
+                try {
+                    packet.setLength(b.capacity());
+                    socket.receive(packet);
+                }
+                catch (SocketTimeoutException e) { continue; }
+                b.clear();
+                b.limit(packet.getLength());
+                b.getShort();
+                decode(b, f);
+                print(f, last);
+                last = f.frame;
+            }
+        }
+
+        SocketChannel ch = SocketChannel.open(server);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch)));
+        while (true) {
+            int len = in.readUnsignedShort();
+            b.clear();
+            in.readFully(b.array(), 0, len);
+            b.limit(len);
+            decode(b, f);
+            print(f, last);
+            last = f.frame;
+        }
+    }
+
+    static void print(Frame f, long last)
+    {
+        StringBuilder s = new StringBuilder();
+        s.append(f.timestamp);
+        for (int k = 0; k < f.fused_headings.length; k++) {
+            s.append(String.format(",%.4f", IMU.toDegrees(f.fused_headings[k][2])));
+        }
+        s.append(",").append((last < 0) ? 0 : f.frame - last - 1);
+        System.out.println(s);
+    }
+}
@@ -0,0 +1,545 @@
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Streams every fused frame of an IMU to local TCP and UDP clients
+// The IMU thread encodes each frame once into a ring of RING_FRAMES messages
+// and wakes the server thread, which is the only one that touches sockets,
+// all of them non-blocking behind one Selector. Every TCP client has its own
+// place in the ring and its own send buffer, so a client that reads slowly
+// only holds itself up; once it is a whole ring behind, the IMU thread takes
+// its place away (like SampleBus does with DROP_OLDEST) and the server
+// disconnects it. UDP clients subscribe by sending any datagram to the port,
+// and again within UDP_TIMEOUT_MILLIS to stay subscribed. UDP frames are
+// dropped, not queued, when the socket's send buffer is full or the server
+// thread itself falls a ring behind.
+//
+// Every message is big-endian:
+//   short  length of the rest of the message
+//   byte   message type (MSG_FRAME)
+//   byte   format version
+//   long   timestamp (ms, as sent by the board)
+//   long   frame number, counting every frame the IMU has processed
+//   byte   number of sensors n
+//   byte   number of fusion algorithms f (indexed like IMU.getFusion)
+//   float  fused attitude quaternion w, x, y, z
+//   float  average acceleration X, Y, Z (m/s^2)
+//   n times: float heading X, Y, Z (rad), float rate X, Y, Z (rad/sec)
+//   f times: float heading X, Y, Z (rad), float rate X, Y, Z (rad/sec)
+// A TCP client reads a stream of messages, a UDP client gets one message per
+// datagram. StreamClient decodes them.
+// Usage: StreamServer [port] [capture file | sim]
+//   without a file, the board is streamed until killed
+public class StreamServer implements FrameListener
+{
+    static final int DEFAULT_PORT = 5760;
+    static final byte MSG_FRAME = 1;
+    static final byte VERSION = 1;
+    static final int HEADER_SIZE = 22;
+    // Frames a TCP client can fall behind before it is disconnected
+    // (about 5 seconds at 45 Hz)
+    static final int RING_FRAMES = 256;
+    // Messages gathered into one write to a TCP client
+    static final int SEND_FRAMES = 16;
+    static final long UDP_TIMEOUT_MILLIS = 10000;
+    // Longest the server thread waits without any event
+    static final long SELECT_MILLIS = 1000;
+    // Sequence number of a client the IMU thread has taken the place of
+    static final long EVICTED = Long.MAX_VALUE;
+
+    private final IMU imu;
+    private final int num_sensors;
+    private final int num_fusions;
+    private final int message_size;
+
+    // Encoded messages, written in place by the IMU thread
+    private final byte slots[][];
+    private final ByteBuffer slot_bufs[];
+    private final int mask;
+    // Sequence number of the next message to be published
+    private final AtomicLong published = new AtomicLong();
+    private IMUState state_seen = null;
+    private IMUState.Snapshot snapshot;
+
+    // A reader of the ring
+    private static class Cursor
+    {
+        // Sequence number of the next message to send, or EVICTED
+        final AtomicLong next = new AtomicLong();
+    }
+
+    private class TcpClient extends Cursor
+    {
+        final SocketChannel channel;
+        final ByteBuffer out = ByteBuffer.allocateDirect(SEND_FRAMES*message_size);
+        SelectionKey key;
+
+        TcpClient(SocketChannel channel)
+        {
+            this.channel = channel;
+        }
+    }
+
+    private static class UdpClient
+    {
+        final SocketAddress address;
+        long last_heard;
+
+        UdpClient(SocketAddress address)
+        {
+            this.address = address;
+        }
+    }
+
+    // Every TCP client and the UDP sender, replaced as a whole when changed
+    private volatile Cursor cursors[] = new Cursor[0];
+    private final Object cursor_lock = new Object();
+
+    // Only used by the server thread
+    private final Selector selector;
+    private final ServerSocketChannel tcp;
+    private final DatagramChannel udp;
+    private final List<TcpClient> tcp_clients = new ArrayList<TcpClient>();
+    private final List<UdpClient> udp_clients = new ArrayList<UdpClient>();
+    private final Cursor udp_cursor = new Cursor();
+    // Next frame the UDP clients were due, to count the ones skipped
+    private long udp_next = 0;
+    private final ByteBuffer udp_in = ByteBuffer.allocate(64);
+    private final ByteBuffer udp_out;
+    private final ByteBuffer discard = ByteBuffer.allocate(256);
+    private Thread thread = null;
+    private volatile boolean closed = false;
+
+    private final Metrics metrics;
+    private final LongAdder frames_published;
+    private final LongAdder bytes_sent;
+    private final LongAdder clients_evicted;
+    private final LongAdder udp_dropped;
+    private volatile int num_tcp = 0;
+    private volatile int num_udp = 0;
+
+    // Stream the frames of imu on address (TCP and UDP), from start()
+    // Fusion algorithms added to the IMU later are not streamed
+    public StreamServer(IMU imu, InetSocketAddress address) throws IOException
+    {
+        this.imu = imu;
+        num_sensors = imu.getNumSensors();
+        num_fusions = imu.getNumFusions();
+        message_size = HEADER_SIZE + 4*(4 + IMU.NUM_AXES) + 4*2*IMU.NUM_AXES*(num_sensors + num_fusions);
+
+        int size = 1;
+        while (size < RING_FRAMES) {
+            size <<= 1;
+        }
+        slots = new byte[size][message_size];
+        slot_bufs = new ByteBuffer[size];
+        for (int i = 0; i < size; i++) {
+            slot_bufs[i] = ByteBuffer.wrap(slots[i]);
+        }
+        mask = size - 1;
+        udp_out = ByteBuffer.allocateDirect(message_size);
+
+        selector = Selector.open();
+        tcp = ServerSocketChannel.open();
+        tcp.bind(address);
+        tcp.configureBlocking(false);
+        tcp.register(selector, SelectionKey.OP_ACCEPT);
+        udp = DatagramChannel.open();
+        udp.bind(new InetSocketAddress(address.getAddress(), tcp.socket().getLocalPort()));
+        udp.configureBlocking(false);
+        udp.register(selector, SelectionKey.OP_READ);
+        addCursor(udp_cursor);
+
+        metrics = new Metrics("type=StreamServer,port=" + tcp.socket().getLocalPort());
+        frames_published = metrics.counter("FramesPublished", "Frames encoded for the clients");
+        bytes_sent = metrics.counter("BytesSent", "Bytes sent to TCP and UDP clients");
+        clients_evicted = metrics.counter("ClientsEvicted", "TCP clients disconnected for falling a ring behind");
+        udp_dropped = metrics.counter("UdpFramesDropped", "Frames not sent to a UDP client, for lack of buffer space or time");
+        metrics.gauge("TcpClients", "Connected TCP clients", () -> num_tcp);
+        metrics.gauge("UdpClients", "Subscribed UDP clients", () -> num_udp);
+    }
+
+    // Start serving and streaming
+    public synchronized void start()
+    {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread("StreamServer") {
+            public void run()
+            {
+                serve();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        imu.addFrameListener(this);
+        metrics.register();
+    }
+
+    // Stop streaming and close every connection
+    public synchronized void close()
+    {
+        imu.removeFrameListener(this);
+        metrics.unregister();
+        closed = true;
+        selector.wakeup();
+        if (thread != null) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        } else {
+            closeChannels();
+        }
+    }
+
+    public int getPort()
+    {
+        return tcp.socket().getLocalPort();
+    }
+
+    public int getNumClients()
+    {
+        return num_tcp + num_udp;
+    }
+
+    public Metrics getMetrics()
+    {
+        return metrics;
+    }
+
+    //
+    //
+    // IMU thread
+    //
+    //
+
+    public void frameProcessed(IMUState state)
+    {
+        if (state != state_seen) {
+            if (state.getNumSensors() != num_sensors || state.getNumFusions() != num_fusions) {
+                return;
+            }
+            snapshot = state.newSnapshot();
+            state_seen = state;
+        }
+        state.read(snapshot);
+
+        // Take the place of any client still to send the message in the slot
+        long n = published.get();
+        long wrap = n - slots.length;
+        for (Cursor c : cursors) {
+            long s;
+            while ((s = c.next.get()) <= wrap && !c.next.compareAndSet(s, EVICTED)) {
+                ;
+            }
+        }
+        encode(snapshot, slot_bufs[(int)n & mask]);
+        published.set(n + 1);
+        frames_published.increment();
+        selector.wakeup();
+    }
+
+    private void encode(IMUState.Snapshot s, ByteBuffer b)
+    {
+        b.clear();
+        b.putShort((short)(message_size - 2));
+        b.put(MSG_FRAME);
+        b.put(VERSION);
+        b.putLong(s.timestamp);
+        b.putLong(s.frames);
+        b.put((byte)num_sensors);
+        b.put((byte)num_fusions);
+        for (int n = 0; n < 4; n++) {
+            b.putFloat((float)s.attitude[n]);
+        }
+        for (int n = 0; n < IMU.NUM_AXES; n++) {
+            b.putFloat((float)s.average_accels[n]);
+        }
+        for (int k = 0; k < num_sensors; k++) {
+            putAxes(b, s.headings[k]);
+            putAxes(b, s.rates[k]);
+        }
+        for (int f = 0; f < num_fusions; f++) {
+            putAxes(b, s.fused_headings[f]);
+            putAxes(b, s.fused_rates[f]);
+        }
+    }
+
+    private static void putAxes(ByteBuffer b, double v[])
+    {
+        for (int n = 0; n < IMU.NUM_AXES; n++) {
+            b.putFloat((float)v[n]);
+        }
+    }
+
+    //
+    //
+    // Server thread
+    //
+    //
+
+    private void serve()
+    {
+        try {
+            while (!closed) {
+                selector.select(SELECT_MILLIS);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.channel() == udp) {
+                        receiveUdp();
+                    } else if (key.isReadable()) {
+                        readTcp((TcpClient)key.attachment());
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                for (int i = tcp_clients.size() - 1; i >= 0; i--) {
+                    flush(tcp_clients.get(i));
+                }
+                sendUdp();
+            }
+        }
+        catch (IOException e) {
+            System.err.println(e.toString());
+        }
+        finally {
+            closeChannels();
+        }
+    }
+
+    private void accept() throws IOException
+    {
+        SocketChannel ch;
+        while ((ch = tcp.accept()) != null) {
+            ch.configureBlocking(false);
+            ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            TcpClient c = new TcpClient(ch);
+            c.next.set(published.get());
+            c.key = ch.register(selector, SelectionKey.OP_READ, c);
+            tcp_clients.add(c);
+            addCursor(c);
+            num_tcp = tcp_clients.size();
+        }
+    }
+
+    // Clients have nothing to say, but reading shows when they hang up
+    private void readTcp(TcpClient c)
+    {
+        try {
+            discard.clear();
+            if (c.channel.read(discard) < 0) {
+                remove(c);
+            }
+        } catch (IOException e) {
+            remove(c);
+        }
+    }
+
+    // Send c the messages it has not had yet, as far as its socket takes them
+    private void flush(TcpClient c)
+    {
+        try {
+            while (true) {
+                if (!fill(c, c.out)) {
+                    clients_evicted.increment();
+                    remove(c);
+                    return;
+                }
+                c.out.flip();
+                if (!c.out.hasRemaining()) {
+                    c.out.clear();
+                    c.key.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+                bytes_sent.add(c.channel.write(c.out));
+                boolean full = c.out.hasRemaining();
+                c.out.compact();
+                if (full) {
+                    // Wait for the socket to drain
+                    c.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            remove(c);
+        }
+    }
+
+    // Copy the messages c has not taken yet into out, as far as they fit
+    // Returns false if the IMU thread took c's place
+    private boolean fill(Cursor c, ByteBuffer out)
+    {
+        long p = published.get();
+        while (true) {
+            long s = c.next.get();
+            if (s == EVICTED) {
+                return false;
+            }
+            if (s >= p || out.remaining() < message_size) {
+                return true;
+            }
+            int pos = out.position();
+            out.put(slots[(int)s & mask], 0, message_size);
+            // Fails only if the IMU thread took our place meanwhile
+            if (!c.next.compareAndSet(s, s + 1)) {
+                out.position(pos);
+            }
+        }
+    }
+
+    private void remove(TcpClient c)
+    {
+        c.key.cancel();
+        try {
+            c.channel.close();
+        } catch (IOException e) { }
+        tcp_clients.remove(c);
+        removeCursor(c);
+        num_tcp = tcp_clients.size();
+    }
+
+    // Any datagram subscribes its sender, or keeps it subscribed
+    private void receiveUdp() throws IOException
+    {
+        long now = System.currentTimeMillis();
+        SocketAddress from;
+        udp_in.clear();
+        while ((from = udp.receive(udp_in)) != null) {
+            udp_in.clear();
+            UdpClient c = null;
+            for (UdpClient u : udp_clients) {
+                if (u.address.equals(from)) {
+                    c = u;
+                }
+            }
+            if (c == null) {
+                c = new UdpClient(from);
+                udp_clients.add(c);
+            }
+            c.last_heard = now;
+        }
+        num_udp = udp_clients.size();
+    }
+
+    // Send every new message to every UDP client, one datagram each
+    private void sendUdp()
+    {
+        long now = System.currentTimeMillis();
+        for (int i = udp_clients.size() - 1; i >= 0; i--) {
+            if (now - udp_clients.get(i).last_heard > UDP_TIMEOUT_MILLIS) {
+                udp_clients.remove(i);
+            }
+        }
+        num_udp = udp_clients.size();
+
+        while (true) {
+            long s = udp_cursor.next.get();
+            if (s != EVICTED) {
+                udp_next = s;
+            }
+            udp_out.clear();
+            if (!fill(udp_cursor, udp_out)) {
+                // The server thread itself fell a ring behind, skip ahead
+                long p = published.get();
+                if (udp_cursor.next.compareAndSet(EVICTED, p)) {
+                    udp_dropped.add((p - udp_next)*udp_clients.size());
+                }
+                continue;
+            }
+            if (udp_out.position() == 0) {
+                return;
+            }
+            udp_out.flip();
+            for (int i = udp_clients.size() - 1; i >= 0; i--) {
+                udp_out.rewind();
+                try {
+                    int sent = udp.send(udp_out, udp_clients.get(i).address);
+                    if (sent == 0) {
+                        udp_dropped.increment();
+                    }
+                    bytes_sent.add(sent);
+                } catch (IOException e) {
+                    udp_clients.remove(i);
+                }
+            }
+            num_udp = udp_clients.size();
+        }
+    }
+
+    private void closeChannels()
+    {
+        for (int i = tcp_clients.size() - 1; i >= 0; i--) {
+            remove(tcp_clients.get(i));
+        }
+        udp_clients.clear();
+        num_udp = 0;
+        try {
+            tcp.close();
+            udp.close();
+            selector.close();
+        } catch (IOException e) {
+            System.err.println(e.toString());
+        }
+    }
+
+    private void addCursor(Cursor c)
+    {
+        synchronized (cursor_lock) {
+            Cursor list[] = Arrays.copyOf(cursors, cursors.length + 1);
+            list[list.length - 1] = c;
+            cursors = list;
+        }
+    }
+
+    private void removeCursor(Cursor c)
+    {
+        synchronized (cursor_lock) {
+            List<Cursor> list = new ArrayList<Cursor>(Arrays.asList(cursors));
+            if (list.remove(c)) {
+                cursors = list.toArray(new Cursor[list.size()]);
+            }
+        }
+    }
+
+    public static void main(String args[]) throws IOException
+    {
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+
+        IMU imu;
+        if (args.length > 1) {
+            PacedSampleSource source;
+            if (args[1].equals("sim")) {
+                source = new SimulatedSampleSource(4, 22, 0.01, 0);
+            } else {
+                source = new ReplaySampleSource(args[1], IMU.IMUType.MPU6050);
+            }
+            imu = new IMU(IMU.IMUType.MPU6050, source);
+        } else {
+            imu = new IMU(IMU.IMUType.MPU6050);
+            imu.setBiasCache(new BiasCache(BiasCache.DEFAULT_FILE));
+            // Only the Z gyros have real scales in imu.conf
+            imu.getStillnessDetector().setRateAxes(1 << 2);
+            imu.setStillnessDetection(true);
+        }
+
+        // Local clients only
+        StreamServer server = new StreamServer(imu, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        server.start();
+        System.out.println("Streaming " + server.message_size + " byte frames on port " + server.getPort());
+
+        // Runs until a recording runs out, or for as long as the board sends
+        imu.run();
+        server.close();
+    }
+}
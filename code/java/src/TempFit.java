@@ -0,0 +1,166 @@
+import java.util.*;
+import java.lang.*;
+
+// Recursive least squares fit of gyro bias against temperature
+// For each axis the uncompensated rate (raw*scale, rad/sec) of a still
+// sensor is modelled as a polynomial in d = temp - temp_ref:
+//   rate = c0 + c1*d + c2*d^2 + ... + cp*d^p
+// All three axes share the regressors, so one covariance matrix serves them
+// all and an update costs O(p^2), independent of how long the fit has run.
+// Internally d is divided by temp_scale to keep the matrix well conditioned.
+//
+// The fit starts from prior coefficients that count as much as PRIOR_SAMPLES
+// samples, so while the temperature stays put the intercept tracks the bias
+// and the slope stays near its prior. Older samples can be discounted with
+// a forgetting factor below 1, but then the temperature must keep moving or
+// the terms it does not excite become unreliable.
+public class TempFit
+{
+    static final int NUM_AXES = IMU.NUM_AXES;
+    // Weight of the prior coefficients, in samples
+    static final double PRIOR_SAMPLES = 100.0;
+
+    private final int m;
+    private final double temp_ref;
+    private final double temp_scale;
+    private double lambda = 1.0;
+
+    // Coefficients of each axis in scaled units, and their shared covariance
+    private final double theta[][];
+    private final double P[][];
+    // Scratch regressor and P*u
+    private final double u[];
+    private final double pu[];
+
+    private long samples = 0;
+    private double min_temp = Double.MAX_VALUE;
+    private double max_temp = -Double.MAX_VALUE;
+
+    // Polynomial of the given order around temp_ref, starting from
+    // prior[axis][j], the coefficient of d^j (rad/sec per temp count^j)
+    public TempFit(int order, double temp_ref, double temp_scale, double prior[][])
+    {
+        m = order + 1;
+        this.temp_ref = temp_ref;
+        this.temp_scale = temp_scale;
+        theta = new double[NUM_AXES][m];
+        P = new double[m][m];
+        u = new double[m];
+        pu = new double[m];
+        for (int i = 0; i < NUM_AXES; i++) {
+            double s = 1.0;
+            for (int j = 0; j < m && j < prior[i].length; j++) {
+                theta[i][j] = prior[i][j]*s;
+                s *= temp_scale;
+            }
+        }
+        for (int j = 0; j < m; j++) {
+            P[j][j] = 1.0/PRIOR_SAMPLES;
+        }
+    }
+
+    // Add the uncompensated rates of a still sensor at temperature temp
+    public void add(double temp, double rate[])
+    {
+        double x = (temp - temp_ref)/temp_scale;
+        u[0] = 1.0;
+        for (int j = 1; j < m; j++) {
+            u[j] = u[j - 1]*x;
+        }
+
+        double denom = lambda;
+        for (int r = 0; r < m; r++) {
+            double v = 0.0;
+            for (int c = 0; c < m; c++) {
+                v += P[r][c]*u[c];
+            }
+            pu[r] = v;
+            denom += u[r]*v;
+        }
+
+        for (int i = 0; i < NUM_AXES; i++) {
+            double e = rate[i];
+            for (int j = 0; j < m; j++) {
+                e -= u[j]*theta[i][j];
+            }
+            e /= denom;
+            for (int j = 0; j < m; j++) {
+                theta[i][j] += pu[j]*e;
+            }
+        }
+
+        // P = (P - P*u*u'*P/denom)/lambda, kept symmetric
+        for (int r = 0; r < m; r++) {
+            for (int c = r; c < m; c++) {
+                double v = (P[r][c] - pu[r]*pu[c]/denom)/lambda;
+                P[r][c] = v;
+                P[c][r] = v;
+            }
+        }
+
+        samples++;
+        min_temp = Math.min(min_temp, temp);
+        max_temp = Math.max(max_temp, temp);
+    }
+
+    // Copy the coefficients of d^j (rad/sec per temp count^j) into c[axis][j]
+    public void getCoefficients(double c[][])
+    {
+        for (int i = 0; i < NUM_AXES; i++) {
+            double s = 1.0;
+            for (int j = 0; j < m; j++) {
+                c[i][j] = theta[i][j]/s;
+                s *= temp_scale;
+            }
+        }
+    }
+
+    public double[][] getCoefficients()
+    {
+        double c[][] = new double[NUM_AXES][m];
+        getCoefficients(c);
+        return c;
+    }
+
+    public int getOrder()
+    {
+        return m - 1;
+    }
+
+    public double getTempRef()
+    {
+        return temp_ref;
+    }
+
+    public double getTempScale()
+    {
+        return temp_scale;
+    }
+
+    public long getSamples()
+    {
+        return samples;
+    }
+
+    // Temperatures seen so far (raw counts), the fit is only good in between
+    public double getMinTemp()
+    {
+        return min_temp;
+    }
+
+    public double getMaxTemp()
+    {
+        return max_temp;
+    }
+
+    // Weight of a sample relative to the next one, 1 to never forget
+    public void setForgetting(double lambda)
+    {
+        this.lambda = lambda;
+    }
+
+    public double getForgetting()
+    {
+        return lambda;
+    }
+}
@@ -0,0 +1,108 @@
+import java.util.*;
+import java.lang.*;
+
+// Average with each sensor weighted by the inverse of its distance from a
+// reference heading
+// The reference is either the plain average of the sensors, or (iterative)
+// this algorithm's own previous output, which keeps favouring the sensors
+// that were weighted up before. Samples are integrated with the weights
+// from the previous frame, then the weights are updated once per frame.
+public class WeightedAverageFusion implements FusionAlgorithm
+{
+    static final int NUM_AXES = IMU.NUM_AXES;
+    // Smallest heading difference used for weighting (rad)
+    static final double WEIGHT_EPSILON = 1e-12;
+
+    private boolean iterative;
+    private IMU.IMUData sensors[];
+    // Plain average heading, the reference when not iterative
+    private double average[] = new double[NUM_AXES];
+    private double head[] = new double[NUM_AXES];
+    private double rate[] = new double[NUM_AXES];
+    // Sensor weights (not normalized) and their sums
+    private double weight[][];
+    private double weight_sum[] = new double[NUM_AXES];
+
+    public WeightedAverageFusion(boolean iterative)
+    {
+        this.iterative = iterative;
+    }
+
+    public String getName()
+    {
+        return iterative ? "wa2" : "wa";
+    }
+
+    public void configure(IMU.IMUData s[])
+    {
+        if (sensors == null || sensors.length != s.length) {
+            // Start with equal weights
+            weight = new double[s.length][NUM_AXES];
+            for (int i = 0; i < s.length; i++) {
+                for (int n = 0; n < NUM_AXES; n++) {
+                    weight[i][n] = 1.0/s.length;
+                }
+            }
+            for (int n = 0; n < NUM_AXES; n++) {
+                weight_sum[n] = 1.0;
+            }
+        }
+        sensors = s;
+    }
+
+    public void update(SampleBatch frame, int active_sensors, double dt)
+    {
+        for (int n = 0; n < NUM_AXES; n++) {
+            rate[n] = 0.0;
+        }
+        for (int i = 0; i < frame.size; i++) {
+            int id = frame.id[i];
+            if (id >= 0 && id < active_sensors) {
+                double delta[] = sensors[id].getDelta();
+                double r[] = sensors[id].getRate();
+                for (int n = 0; n < NUM_AXES; n++) {
+                    average[n] += delta[n]/active_sensors;
+                    head[n] += weight[id][n]*delta[n]/weight_sum[n];
+                    rate[n] += weight[id][n]*r[n]/weight_sum[n];
+                }
+            }
+        }
+        updateWeights(iterative ? head : average, active_sensors);
+    }
+
+    // Weight each sensor by the inverse of its distance from ref
+    // Weights are kept unnormalized with their sums, which gives the same
+    // normalized weights as scaling by the summed distances, in one pass.
+    private void updateWeights(double ref[], int active_sensors)
+    {
+        for (int n = 0; n < NUM_AXES; n++) {
+            weight_sum[n] = 0.0;
+        }
+        for (int k = 0; k < active_sensors; k++) {
+            double h[] = sensors[k].getHeading();
+            for (int n = 0; n < NUM_AXES; n++) {
+                // A sensor right on the reference would get an infinite weight
+                weight[k][n] = 1.0/Math.max(Math.abs(ref[n] - h[n]), WEIGHT_EPSILON);
+                weight_sum[n] += weight[k][n];
+            }
+            // Debug weights
+            //System.out.println("Sensor" + k + ": " + weight[k][2]/weight_sum[2]);
+        }
+    }
+
+    public void getHeadings(double out[])
+    {
+        System.arraycopy(head, 0, out, 0, NUM_AXES);
+    }
+
+    public void getRates(double out[])
+    {
+        System.arraycopy(rate, 0, out, 0, NUM_AXES);
+    }
+
+    public void setHeadings(double h[])
+    {
+        System.arraycopy(h, 0, head, 0, NUM_AXES);
+        System.arraycopy(h, 0, average, 0, NUM_AXES);
+    }
+}
@@ -0,0 +1,216 @@
+import java.util.*;
+import java.lang.*;
+
+// Power spectral density of one rate signal by Welch's method
+// Samples go into a ring of one segment length. Every half segment the
+// latest full segment has its mean removed, is Hann windowed and
+// transformed with a radix-2 FFT, and its periodogram is added to the
+// running sum, so segments overlap by 50%. All buffers are allocated up
+// front and nothing is allocated per sample.
+//
+// The spectrum is one-sided, in (units)^2/Hz for samples in units, with
+// the sample rate taken from the average sample spacing. The segment sum
+// is updated under a lock once per half segment, so other threads can read
+// the spectrum while samples are being added.
+public class WelchPSD
+{
+    static final int DEFAULT_SEGMENT = 64;
+
+    private final int n;
+    private final int log2n;
+    // Latest samples, oldest at pos once the ring is full
+    private final double ring[];
+    private int pos = 0;
+    private long count = 0;
+    private double total_time = 0.0;
+
+    // FFT work buffers, twiddles and bit reversal table
+    private final double re[];
+    private final double im[];
+    private final double cos_table[];
+    private final double sin_table[];
+    private final int reverse[];
+    private final double window[];
+    // Sum of squared window values
+    private final double window_power;
+
+    // Sum of the periodograms and number of segments in it
+    private final double psd_sum[];
+    private long segments = 0;
+    // Average sample rate up to the latest segment (Hz)
+    private double sample_rate = 0.0;
+
+    public WelchPSD()
+    {
+        this(DEFAULT_SEGMENT);
+    }
+
+    // segment must be a power of two, it sets the resolution to
+    // sample rate/segment
+    public WelchPSD(int segment)
+    {
+        if (segment < 4 || (segment & (segment - 1)) != 0) {
+            throw new IllegalArgumentException("Segment length must be a power of two: " + segment);
+        }
+        n = segment;
+        log2n = Integer.numberOfTrailingZeros(n);
+        ring = new double[n];
+        re = new double[n];
+        im = new double[n];
+        cos_table = new double[n/2];
+        sin_table = new double[n/2];
+        for (int k = 0; k < n/2; k++) {
+            cos_table[k] = Math.cos(2.0*Math.PI*k/n);
+            sin_table[k] = -Math.sin(2.0*Math.PI*k/n);
+        }
+        reverse = new int[n];
+        for (int i = 0; i < n; i++) {
+            reverse[i] = Integer.reverse(i) >>> (32 - log2n);
+        }
+        window = new double[n];
+        double power = 0.0;
+        for (int i = 0; i < n; i++) {
+            window[i] = 0.5 - 0.5*Math.cos(2.0*Math.PI*i/n);
+            power += window[i]*window[i];
+        }
+        window_power = power;
+        psd_sum = new double[n/2 + 1];
+    }
+
+    // Add a sample that covers dt seconds
+    public void add(double y, double dt)
+    {
+        ring[pos] = y;
+        pos = (pos + 1 == n) ? 0 : pos + 1;
+        count++;
+        total_time += dt;
+        if (count >= n && (count - n) % (n/2) == 0) {
+            segment();
+        }
+    }
+
+    // Transform the latest n samples and add their periodogram
+    private void segment()
+    {
+        double mean = 0.0;
+        for (int i = 0; i < n; i++) {
+            mean += ring[i];
+        }
+        mean /= n;
+        for (int i = 0; i < n; i++) {
+            int j = reverse[i];
+            int p = pos + i;
+            if (p >= n) {
+                p -= n;
+            }
+            re[j] = (ring[p] - mean)*window[i];
+            im[j] = 0.0;
+        }
+        fft();
+        synchronized (this) {
+            for (int k = 0; k <= n/2; k++) {
+                psd_sum[k] += re[k]*re[k] + im[k]*im[k];
+            }
+            segments++;
+            sample_rate = (total_time > 0.0) ? count/total_time : 0.0;
+        }
+    }
+
+    // In-place radix-2 FFT of re/im, input already in bit reversed order
+    private void fft()
+    {
+        for (int size = 2; size <= n; size <<= 1) {
+            int half = size >> 1;
+            int step = n/size;
+            for (int start = 0; start < n; start += size) {
+                for (int k = 0; k < half; k++) {
+                    double c = cos_table[k*step];
+                    double s = sin_table[k*step];
+                    int a = start + k;
+                    int b = a + half;
+                    double tr = re[b]*c - im[b]*s;
+                    double ti = re[b]*s + im[b]*c;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+
+    public synchronized void clear()
+    {
+        Arrays.fill(psd_sum, 0.0);
+        segments = 0;
+        sample_rate = 0.0;
+        pos = 0;
+        count = 0;
+        total_time = 0.0;
+    }
+
+    public int getSegmentLength()
+    {
+        return n;
+    }
+
+    // Number of frequency bins, from 0 to the Nyquist frequency
+    public int getNumBins()
+    {
+        return n/2 + 1;
+    }
+
+    public synchronized long getSegments()
+    {
+        return segments;
+    }
+
+    // Average sample rate (Hz), known once the first segment is complete
+    public synchronized double getSampleRate()
+    {
+        return sample_rate;
+    }
+
+    // Frequency of bin k (Hz)
+    public double getFrequency(int k)
+    {
+        return k*getSampleRate()/n;
+    }
+
+    // Copy the spectrum into out (getNumBins() values), all 0 until the
+    // first segment is complete
+    public synchronized void getSpectrum(double out[])
+    {
+        double fs = sample_rate;
+        if (segments == 0 || fs == 0.0) {
+            Arrays.fill(out, 0, n/2 + 1, 0.0);
+            return;
+        }
+        double scale = 1.0/(fs*window_power*segments);
+        for (int k = 0; k <= n/2; k++) {
+            // One-sided, so every bin but DC and Nyquist counts twice
+            double f = (k == 0 || k == n/2) ? 1.0 : 2.0;
+            out[k] = f*scale*psd_sum[k];
+        }
+    }
+
+    public double[] getSpectrum()
+    {
+        double out[] = new double[n/2 + 1];
+        getSpectrum(out);
+        return out;
+    }
+
+    // Frequency of the strongest bin at or above min_freq (Hz), e.g. a vibration
+    public double getPeakFrequency(double min_freq)
+    {
+        double s[] = getSpectrum();
+        int best = -1;
+        for (int k = 1; k < s.length; k++) {
+            if (getFrequency(k) >= min_freq && (best < 0 || s[k] > s[best])) {
+                best = k;
+            }
+        }
+        return (best < 0) ? Double.NaN : getFrequency(best);
+    }
+}